@@ -0,0 +1,25 @@
+package com.ywh.jua.api;
+
+import com.ywh.jua.state.LuaStateImpl;
+
+/**
+ * 延续函数（lua-5.3.4/src/lua.h#lua_KFunction）：Java 函数通过 {@link LuaBasicAPI#pCallK} 调用的函数挂起协程后，
+ * Java 函数本身已经不在调用栈中；协程恢复、被调用函数返回或出错时，以调用状态调用延续函数完成该 Java 函数，
+ * 其返回值就是该 Java 函数的返回值个数。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+@FunctionalInterface
+public interface KFunction {
+
+    /**
+     * 完成 Java 函数
+     *
+     * @param ls
+     * @param status 被调用函数正常返回时为 LUA_OK，出错时为 LUA_ERRRUN（错误信息在栈顶）
+     * @return
+     */
+    int invoke(LuaStateImpl ls, ThreadStatus status);
+
+}
@@ -88,6 +88,14 @@ public interface LuaAuxLib {
      */
     String checkString(int arg);
 
+    /**
+     * 确保参数为字符串，返回其字节序列
+     *
+     * @param arg
+     * @return
+     */
+    LuaString checkLuaString(int arg);
+
     /**
      *
      * @param arg
@@ -199,6 +199,14 @@ public interface LuaBasicAPI {
 
     String toString(int idx);
 
+    /**
+     * 取字符串（数字转换为字符串）的字节序列，不经过编码转换；其他类型返回 null
+     *
+     * @param idx
+     * @return
+     */
+    LuaString toLuaString(int idx);
+
     // ========== 指定类型的值入栈 ==========
 
     /* push functions (Go -> stack); */
@@ -236,6 +244,13 @@ public interface LuaBasicAPI {
      */
     void pushString(String s);
 
+    /**
+     * 字符串类型入栈（不经过编码转换）
+     *
+     * @param s
+     */
+    void pushLuaString(LuaString s);
+
     /**
      * 适用于任何类型的字符串类型入栈
      *
@@ -362,6 +377,18 @@ public interface LuaBasicAPI {
 
     ThreadStatus pCall(int nArgs, int nResults, int msgh);
 
+    /**
+     * 可挂起的 pCall（lua_pcallk）：被调用函数挂起协程时本方法不再返回，
+     * 协程恢复后被调用函数返回或出错时，以调用状态调用 k 完成调用本方法的 Java 函数；没有挂起时与 pCall 相同。
+     *
+     * @param nArgs
+     * @param nResults
+     * @param msgh
+     * @param k
+     * @return
+     */
+    ThreadStatus pCallK(int nArgs, int nResults, int msgh, KFunction k);
+
     /* miscellaneous functions */
 
     /**
@@ -559,6 +586,11 @@ public interface LuaBasicAPI {
      */
     ThreadStatus status();
 
+    /**
+     * 关闭已结束的协程，释放它的栈以便复用
+     */
+    void closeThread();
+
     /**
      *
      * @return
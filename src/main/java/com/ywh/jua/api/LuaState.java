@@ -37,7 +37,10 @@ public interface LuaState extends LuaBasicAPI, LuaAuxLib {
 
     int LUA_MULTRET = -1;
 
-    int LUA_RIDX_MAINTHREAD = 1;
+    /**
+     * 主线程在注册表的索引（与 LUA_RIDX_GLOBALS 相同按整数键存取）
+     */
+    long LUA_RIDX_MAINTHREAD = 1;
 
 
 }
@@ -0,0 +1,263 @@
+package com.ywh.jua.api;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lua 字符串：不可变的字节序列（lua-5.3.4/src/lobject.h#TString）
+ *
+ * 字节存放在 bytes[offset, offset + length) 中，子串与原串共享同一个字节数组（不复制）；
+ * 哈希值第一次使用时计算并缓存。虚拟机内部（寄存器、表的键、常量）只使用 LuaString，
+ * 只在 Java API 的边界（{@link LuaBasicAPI#pushString(String)}、{@link LuaBasicAPI#toString(int)} 等）按 UTF-8 与 String 互相转换。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+public final class LuaString implements Comparable<LuaString> {
+
+    public static final LuaString EMPTY = new LuaString(new byte[0], 0, 0);
+
+    private final byte[] bytes;
+
+    private final int offset;
+
+    private final int length;
+
+    /**
+     * 缓存的哈希值，0 表示尚未计算
+     */
+    private int hash;
+
+    private LuaString(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * 把 String 按 UTF-8 编码为 Lua 字符串（纯 ASCII 时直接逐字符转换）
+     *
+     * @param s
+     * @return
+     */
+    public static LuaString valueOf(String s) {
+        int n = s.length();
+        if (n == 0) {
+            return EMPTY;
+        }
+        byte[] b = new byte[n];
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                return valueOf(s.getBytes(StandardCharsets.UTF_8));
+            }
+            b[i] = (byte) c;
+        }
+        return new LuaString(b, 0, n);
+    }
+
+    /**
+     * 包装字节数组（不复制，调用方此后不能再修改该数组）
+     *
+     * @param bytes
+     * @return
+     */
+    public static LuaString valueOf(byte[] bytes) {
+        return valueOf(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 包装字节数组的一部分（不复制，调用方此后不能再修改该范围）
+     *
+     * @param bytes
+     * @param offset
+     * @param length
+     * @return
+     */
+    public static LuaString valueOf(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+        }
+        return length == 0 ? EMPTY : new LuaString(bytes, offset, length);
+    }
+
+    /**
+     * 字节数
+     *
+     * @return
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 第 i 个字节（从 0 开始），按无符号数返回
+     *
+     * @param i
+     * @return
+     */
+    public int byteAt(int i) {
+        return bytes[offset + i] & 0xFF;
+    }
+
+    /**
+     * 子串 [begin, end)，与原串共享字节数组
+     *
+     * @param begin
+     * @param end
+     * @return
+     */
+    public LuaString substring(int begin, int end) {
+        if (begin < 0 || end > length || begin > end) {
+            throw new IndexOutOfBoundsException("begin " + begin + ", end " + end + ", length " + length);
+        }
+        if (begin == 0 && end == length) {
+            return this;
+        }
+        return end == begin ? EMPTY : new LuaString(bytes, offset + begin, end - begin);
+    }
+
+    /**
+     * 从 from 开始查找字节 c 第一次出现的位置，找不到时返回 -1
+     *
+     * @param c
+     * @param from
+     * @return
+     */
+    public int indexOf(int c, int from) {
+        byte b = (byte) c;
+        for (int i = offset + Math.max(from, 0), end = offset + length; i < end; i++) {
+            if (bytes[i] == b) {
+                return i - offset;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从 from 开始查找子串 s 第一次出现的位置，找不到时返回 -1
+     *
+     * @param s
+     * @param from
+     * @return
+     */
+    public int indexOf(LuaString s, int from) {
+        if (from < 0) {
+            from = 0;
+        }
+        int n = s.length;
+        if (n == 0) {
+            return from <= length ? from : -1;
+        }
+        byte first = s.bytes[s.offset];
+        for (int i = from, last = length - n; i <= last; i++) {
+            if (bytes[offset + i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < n && bytes[offset + i + j] == s.bytes[s.offset + j]) {
+                j++;
+            }
+            if (j == n) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 把字节 [srcBegin, srcEnd) 复制到 dst 的 dstBegin 处
+     *
+     * @param srcBegin
+     * @param srcEnd
+     * @param dst
+     * @param dstBegin
+     */
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+        System.arraycopy(bytes, offset + srcBegin, dst, dstBegin, srcEnd - srcBegin);
+    }
+
+    /**
+     * 只占用自己的字节数组的等值字符串：本身就是时返回自身，否则（例如大字符串的子串）复制一份，
+     * 长期保存时使用，不让原来的大数组一直被引用。
+     *
+     * @return
+     */
+    public LuaString compact() {
+        return offset == 0 && length == bytes.length ? this : new LuaString(toBytes(), 0, length);
+    }
+
+    /**
+     * 复制出所有字节
+     *
+     * @return
+     */
+    public byte[] toBytes() {
+        byte[] b = new byte[length];
+        System.arraycopy(bytes, offset, b, 0, length);
+        return b;
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0 && length > 0) {
+            for (int i = offset, end = offset + length; i < end; i++) {
+                h = 31 * h + bytes[i];
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof LuaString)) {
+            return false;
+        }
+        LuaString s = (LuaString) o;
+        if (length != s.length || (hash != 0 && s.hash != 0 && hash != s.hash)) {
+            return false;
+        }
+        if (bytes == s.bytes && offset == s.offset) {
+            return true;
+        }
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != s.bytes[s.offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按字节（无符号）逐个比较（lua-5.3.4/src/lvm.c#l_strcmp()）
+     *
+     * @param s
+     * @return
+     */
+    @Override
+    public int compareTo(LuaString s) {
+        int n = Math.min(length, s.length);
+        for (int i = 0; i < n; i++) {
+            int d = (bytes[offset + i] & 0xFF) - (s.bytes[s.offset + i] & 0xFF);
+            if (d != 0) {
+                return d;
+            }
+        }
+        return length - s.length;
+    }
+
+    /**
+     * 按 UTF-8 解码为 String
+     *
+     * @return
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
+    }
+
+}
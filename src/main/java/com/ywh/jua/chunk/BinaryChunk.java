@@ -1,7 +1,10 @@
 package com.ywh.jua.chunk;
 
+import com.ywh.jua.api.LuaString;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -178,9 +181,25 @@ public class BinaryChunk {
             size = (int) buf.getLong();
         }
         byte[] a = getBytes(buf, size - 1);
+        return new String(a, StandardCharsets.UTF_8);
+    }
 
-        // TODO
-        return new String(a);
+    /**
+     * 读取字符串常量（保留原始字节）
+     *
+     * @param buf
+     * @return
+     */
+    static LuaString getLuaStringConstant(ByteBuffer buf) {
+        int size = buf.get() & 0xFF;
+        if (size == 0) {
+            return LuaString.EMPTY;
+        }
+        if (size == 0xFF) {
+            // size_t
+            size = (int) buf.getLong();
+        }
+        return LuaString.valueOf(getBytes(buf, size - 1));
     }
 
     /**
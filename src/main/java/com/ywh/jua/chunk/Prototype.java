@@ -1,5 +1,8 @@
 package com.ywh.jua.chunk;
 
+import com.ywh.jua.vm.Instruction;
+import com.ywh.jua.vm.OpCode;
+
 import java.nio.ByteBuffer;
 
 /**
@@ -59,11 +62,48 @@ public class Prototype {
      */
     private int[] code;
 
+    // ========== 预解码的指令表（加载或编译时由 code 生成一次，与 code 按下标一一对应） ==========
+
+    /**
+     * 操作码（{@link OpCode} 的序数）
+     */
+    private int[] opCodes;
+
+    /**
+     * 操作数 A；iAx 模式存放 Ax。
+     */
+    private int[] argsA;
+
+    /**
+     * 操作数 B；iABx 模式存放 Bx，iAsBx 模式存放 sBx。
+     */
+    private int[] argsB;
+
+    /**
+     * 操作数 C
+     */
+    private int[] argsC;
+
+    /**
+     * 指令的内联缓存槽位，由解释器在第一次执行相应指令时创建（缓存的类型由解释器决定）。
+     */
+    private Object[] inlineCaches;
+
     /**
      * 常量表（nil、布尔值、整型、浮点型、字符串），每个常量都以 字节 tag 开头，用来标识后续存储的是哪种类型的常量值。
      */
     private Object[] constants;
 
+    /**
+     * 常量的数字类型：0 为非数字，1 为整数，2 为浮点数（与解释器寄存器的槽位类型一致），由 constants 生成。
+     */
+    private byte[] constantTags;
+
+    /**
+     * 数字常量的拆箱值：整数值或浮点数的位模式，解释器直接读取，不必对常量做 instanceof 和拆箱。
+     */
+    private long[] constantNums;
+
     /**
      * Upvalue 表（2bytes），每个元素 2bytes。
      */
@@ -117,10 +157,38 @@ public class Prototype {
         return code;
     }
 
+    public int[] getOpCodes() {
+        return opCodes;
+    }
+
+    public int[] getArgsA() {
+        return argsA;
+    }
+
+    public int[] getArgsB() {
+        return argsB;
+    }
+
+    public int[] getArgsC() {
+        return argsC;
+    }
+
+    public Object[] getInlineCaches() {
+        return inlineCaches;
+    }
+
     public Object[] getConstants() {
         return constants;
     }
 
+    public byte[] getConstantTags() {
+        return constantTags;
+    }
+
+    public long[] getConstantNums() {
+        return constantNums;
+    }
+
     public Upvalue[] getUpvalues() {
         return upvalues;
     }
@@ -216,10 +284,12 @@ public class Prototype {
 
     public void setCode(int[] code) {
         this.code = code;
+        decode();
     }
 
     public void setConstants(Object[] constants) {
         this.constants = constants;
+        unboxConstants();
     }
 
     public void setUpvalues(Upvalue[] upvalues) {
@@ -252,6 +322,45 @@ public class Prototype {
         for (int i = 0; i < code.length; i++) {
             code[i] = buf.getInt();
         }
+        decode();
+    }
+
+    /**
+     * 预解码指令表：把每条指令的操作码和操作数拆分到平行的整型数组中，
+     * 解释器执行时只需按下标取值，不必在每次执行时重复移位、掩码和查操作码表。
+     */
+    private void decode() {
+        int n = code.length;
+        opCodes = new int[n];
+        argsA = new int[n];
+        argsB = new int[n];
+        argsC = new int[n];
+        inlineCaches = new Object[n];
+        for (int pc = 0; pc < n; pc++) {
+            int i = code[pc];
+            OpCode opCode = Instruction.getOpCode(i);
+            opCodes[pc] = opCode.ordinal();
+            switch (opCode.getOpMode()) {
+                case iABC:
+                    argsA[pc] = Instruction.getA(i);
+                    argsB[pc] = Instruction.getB(i);
+                    argsC[pc] = Instruction.getC(i);
+                    break;
+                case iABx:
+                    argsA[pc] = Instruction.getA(i);
+                    argsB[pc] = Instruction.getBx(i);
+                    break;
+                case iAsBx:
+                    argsA[pc] = Instruction.getA(i);
+                    argsB[pc] = Instruction.getSBx(i);
+                    break;
+                case iAx:
+                    argsA[pc] = Instruction.getAx(i);
+                    break;
+                default:
+                    break;
+            }
+        }
     }
 
     /**
@@ -264,6 +373,26 @@ public class Prototype {
         for (int i = 0; i < constants.length; i++) {
             constants[i] = readConstant(buf);
         }
+        unboxConstants();
+    }
+
+    /**
+     * 拆箱数字常量：记录每个常量的数字类型和值。
+     */
+    private void unboxConstants() {
+        int n = constants.length;
+        constantTags = new byte[n];
+        constantNums = new long[n];
+        for (int i = 0; i < n; i++) {
+            Object val = constants[i];
+            if (val instanceof Long) {
+                constantTags[i] = 1;
+                constantNums[i] = (Long) val;
+            } else if (val instanceof Double) {
+                constantTags[i] = 2;
+                constantNums[i] = Double.doubleToRawLongBits((Double) val);
+            }
+        }
     }
 
     /**
@@ -284,7 +413,7 @@ public class Prototype {
                 return buf.getDouble();
             case TAG_SHORT_STR:
             case TAG_LONG_STR:
-                return BinaryChunk.getLuaString(buf);
+                return BinaryChunk.getLuaStringConstant(buf);
             default:
                 // TODO
                 throw new RuntimeException("corrupted!");
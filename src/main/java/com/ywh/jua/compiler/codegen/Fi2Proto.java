@@ -1,9 +1,11 @@
 package com.ywh.jua.compiler.codegen;
 
+import com.ywh.jua.api.LuaString;
 import com.ywh.jua.chunk.LocVar;
 import com.ywh.jua.chunk.Prototype;
 import com.ywh.jua.chunk.Upvalue;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -55,7 +57,9 @@ class Fi2Proto {
 
     private static Object[] getConstants(FuncInfo fi) {
         Object[] consts = new Object[fi.constants.size()];
-        fi.constants.forEach((c, idx) -> consts[idx] = c);
+        // 字符串常量的每个字符是一个字节（见词法分析）
+        fi.constants.forEach((c, idx) -> consts[idx] = c instanceof String ?
+            LuaString.valueOf(((String) c).getBytes(StandardCharsets.ISO_8859_1)) : c);
         return consts;
     }
 
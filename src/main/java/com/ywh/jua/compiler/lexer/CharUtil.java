@@ -60,4 +60,52 @@ class CharUtil {
         return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
     }
 
+    /**
+     * 字符串字面量按字节表示：每个 char 是一个字节（0 ~ 0xFF），常量表中再逐个转换为 LuaString 的字节。
+     * 源码中的非 ASCII 字符按 UTF-8 编码为多个字节，纯 ASCII 的字符串原样返回。
+     *
+     * @param s
+     * @return
+     */
+    static String toByteChars(String s) {
+        int i = 0;
+        while (i < s.length() && s.charAt(i) < 0x80) {
+            i++;
+        }
+        if (i == s.length()) {
+            return s;
+        }
+        StringBuilder buf = new StringBuilder(s.length() + 16).append(s, 0, i);
+        while (i < s.length()) {
+            int c = s.codePointAt(i);
+            appendUtf8(buf, c);
+            i += Character.charCount(c);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * 把码点按 UTF-8 编码，每个字节追加为一个 char（lua-5.3.4/src/lobject.c#luaO_utf8esc()）
+     *
+     * @param buf
+     * @param c
+     */
+    static void appendUtf8(StringBuilder buf, int c) {
+        if (c < 0x80) {
+            buf.append((char) c);
+        } else if (c < 0x800) {
+            buf.append((char) (0xC0 | c >> 6));
+            buf.append((char) (0x80 | c & 0x3F));
+        } else if (c < 0x10000) {
+            buf.append((char) (0xE0 | c >> 12));
+            buf.append((char) (0x80 | c >> 6 & 0x3F));
+            buf.append((char) (0x80 | c & 0x3F));
+        } else {
+            buf.append((char) (0xF0 | c >> 18));
+            buf.append((char) (0x80 | c >> 12 & 0x3F));
+            buf.append((char) (0x80 | c >> 6 & 0x3F));
+            buf.append((char) (0x80 | c & 0x3F));
+        }
+    }
+
 }
@@ -4,6 +4,7 @@ import java.util.regex.Pattern;
 
 /**
  * 转义符处理
+ * 结果按字节表示（见 {@link CharUtil#toByteChars(String)}）：\ddd、\xXX 各为一个字节，\ u{XXX} 和非 ASCII 字符按 UTF-8 编码。
  *
  * @author ywh
  * @since 2020/8/24 11:26
@@ -30,7 +31,14 @@ class Escaper {
     String escape() {
         while (rawStr.length() > 0) {
             if (rawStr.charAt(0) != '\\') {
-                buf.append(rawStr.nextChar());
+                char c = rawStr.nextChar();
+                if (c < 0x80) {
+                    buf.append(c);
+                } else if (Character.isHighSurrogate(c) && rawStr.length() > 0 && Character.isLowSurrogate(rawStr.charAt(0))) {
+                    CharUtil.appendUtf8(buf, Character.toCodePoint(c, rawStr.nextChar()));
+                } else {
+                    CharUtil.appendUtf8(buf, c);
+                }
                 continue;
             }
 
@@ -173,7 +181,7 @@ class Escaper {
             assert seq != null;
             int d = Integer.parseInt(seq.substring(3, seq.length() - 1), 16);
             if (d <= 0x10FFFF) {
-                buf.appendCodePoint(d);
+                CharUtil.appendUtf8(buf, d);
                 rawStr.next(seq.length());
                 return;
             }
@@ -387,7 +387,7 @@ public class Lexer {
         if (str.startsWith(LF)) {
             str = str.substring(1);
         }
-        return str;
+        return CharUtil.toByteChars(str);
     }
 
     /**
@@ -405,9 +405,9 @@ public class Lexer {
             // 处理转义符转义符
             if (str.indexOf('\\') >= 0) {
                 line += RE_NEW_LINE.split(str).length - 1;
-                str = new Escaper(str, this).escape();
+                return new Escaper(str, this).escape();
             }
-            return str;
+            return CharUtil.toByteChars(str);
         }
         return error("unfinished string");
     }
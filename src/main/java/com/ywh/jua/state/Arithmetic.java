@@ -106,25 +106,10 @@ public class Arithmetic {
         null,
     };
 
-    private static final String[] METAMETHODS = {
-        "__add",
-        "__sub",
-        "__mul",
-        "__mod",
-        "__pow",
-        "__div",
-        "__idiv",
-        "__band",
-        "__bor",
-        "__bxor",
-        "__shl",
-        "__shr",
-        "__unm",
-        "__bnot",
-    };
-
     /**
      * 运算
+     * 两个整数、两个数字（整数与浮点数混合时转换为浮点数）按运算符内联计算；
+     * 其他情况（字符串转换、位运算的浮点数操作数、元方法）交给 {@link #slowArith}。
      *
      * @param a
      * @param b
@@ -132,6 +117,77 @@ public class Arithmetic {
      * @return
      */
     static Object arith(Object a, Object b, ArithOp op, LuaStateImpl ls) {
+        if (a instanceof Long && b instanceof Long) {
+            long x = (Long) a, y = (Long) b;
+            switch (op) {
+                case LUA_OPADD:
+                    return x + y;
+                case LUA_OPSUB:
+                    return x - y;
+                case LUA_OPMUL:
+                    return x * y;
+                case LUA_OPMOD:
+                    return Math.floorMod(x, y);
+                case LUA_OPPOW:
+                    return Math.pow(x, y);
+                case LUA_OPDIV:
+                    return (double) x / y;
+                case LUA_OPIDIV:
+                    return Math.floorDiv(x, y);
+                case LUA_OPBAND:
+                    return x & y;
+                case LUA_OPBOR:
+                    return x | y;
+                case LUA_OPBXOR:
+                    return x ^ y;
+                case LUA_OPSHL:
+                    return LuaMath.shiftLeft(x, y);
+                case LUA_OPSHR:
+                    return LuaMath.shiftRight(x, y);
+                case LUA_OPUNM:
+                    return -x;
+                case LUA_OPBNOT:
+                    return ~x;
+                default:
+                    break;
+            }
+        } else if ((a instanceof Double || a instanceof Long) && (b instanceof Double || b instanceof Long)) {
+            double x = ((Number) a).doubleValue(), y = ((Number) b).doubleValue();
+            switch (op) {
+                case LUA_OPADD:
+                    return x + y;
+                case LUA_OPSUB:
+                    return x - y;
+                case LUA_OPMUL:
+                    return x * y;
+                case LUA_OPMOD:
+                    return LuaMath.floorMod(x, y);
+                case LUA_OPPOW:
+                    return Math.pow(x, y);
+                case LUA_OPDIV:
+                    return x / y;
+                case LUA_OPIDIV:
+                    return LuaMath.floorDiv(x, y);
+                case LUA_OPUNM:
+                    return -x;
+                default:
+                    // 位运算：浮点数需要先转换为整数
+                    break;
+            }
+        }
+        return slowArith(a, b, op, ls);
+    }
+
+    /**
+     * 运算的慢速路径：按一般规则把操作数转换为数字（可能解析字符串），无法转换时查找并调用元方法。
+     *
+     * @param a
+     * @param b
+     * @param op
+     * @param ls
+     * @return
+     */
+    private static Object slowArith(Object a, Object b, ArithOp op, LuaStateImpl ls) {
 
         // 通过枚举常量序数获取具体的运算函数
         LongBinaryOperator integerFunc = INTEGER_OPS[op.ordinal()];
@@ -158,7 +214,7 @@ public class Arithmetic {
         }
 
         // 当一个操作数不是（或无法转换为）数值时，查找元方法，如果存在则调用。
-        Object mm = ls.getMetamethod(a, b, METAMETHODS[op.ordinal()]);
+        Object mm = ls.getMetamethod(a, b, TagMethod.of(op));
         if (mm != null) {
             return ls.callMetamethod(a, b, mm);
         }
@@ -1,5 +1,7 @@
 package com.ywh.jua.state;
 
+import com.ywh.jua.api.LuaString;
+
 /**
  * 比较操作
  *
@@ -17,19 +19,25 @@ class Comparison {
      * @return
      */
     static boolean eq(Object a, Object b, LuaStateImpl ls) {
+        a = Rope.flat(a);
+        b = Rope.flat(b);
         if (a == null) {
             return b == null;
-        } else if (a instanceof Boolean || a instanceof String) {
+        } else if (a instanceof LuaString) {
+            // 短字符串都已驻留（见 StringTable），内容相同时通常是同一个对象
+            return a == b || a.equals(b);
+        } else if (a instanceof Boolean) {
             return a.equals(b);
         } else if (a instanceof Long) {
             return a.equals(b) ||
-                (b instanceof Double && b.equals(((Long) a).doubleValue()));
+                (b instanceof Double && (Double) b == ((Long) a).doubleValue());
         } else if (a instanceof Double) {
-            return a.equals(b) ||
-                (b instanceof Long && a.equals(((Long) b).doubleValue()));
+            // 按数值比较：NaN 不等于任何值，0.0 等于 -0.0
+            return b instanceof Double ? (Double) a == ((Double) b).doubleValue() :
+                (b instanceof Long && (Double) a == ((Long) b).doubleValue());
         } else if (a instanceof LuaTable) {
             if (b instanceof LuaTable && a != b && ls != null) {
-                Object mm = ls.getMetamethod(a, b, "__eq");
+                Object mm = ls.getMetamethod(a, b, TagMethod.EQ);
                 if (mm != null) {
                     return LuaValue.toBoolean(ls.callMetamethod(a, b, mm));
                 }
@@ -49,8 +57,10 @@ class Comparison {
      * @return
      */
     static boolean lt(Object a, Object b, LuaStateImpl ls) {
-        if (a instanceof String && b instanceof String) {
-            return ((String) a).compareTo((String) b) < 0;
+        a = Rope.flat(a);
+        b = Rope.flat(b);
+        if (a instanceof LuaString && b instanceof LuaString) {
+            return ((LuaString) a).compareTo((LuaString) b) < 0;
         }
         if (a instanceof Long) {
             if (b instanceof Long) {
@@ -66,7 +76,7 @@ class Comparison {
                 return ((Double) a) < ((Long) b).doubleValue();
             }
         }
-        Object mm = ls.getMetamethod(a, b, "__lt");
+        Object mm = ls.getMetamethod(a, b, TagMethod.LT);
         if (mm != null) {
             return LuaValue.toBoolean(ls.callMetamethod(a, b, mm));
         }
@@ -82,8 +92,10 @@ class Comparison {
      * @return
      */
     static boolean le(Object a, Object b, LuaStateImpl ls) {
-        if (a instanceof String && b instanceof String) {
-            return ((String) a).compareTo((String) b) <= 0;
+        a = Rope.flat(a);
+        b = Rope.flat(b);
+        if (a instanceof LuaString && b instanceof LuaString) {
+            return ((LuaString) a).compareTo((LuaString) b) <= 0;
         }
         if (a instanceof Long) {
             if (b instanceof Long) {
@@ -99,11 +111,11 @@ class Comparison {
                 return ((Double) a) <= ((Long) b).doubleValue();
             }
         }
-        Object mm = ls.getMetamethod(a, b, "__le");
+        Object mm = ls.getMetamethod(a, b, TagMethod.LE);
         if (mm != null) {
             return LuaValue.toBoolean(ls.callMetamethod(a, b, mm));
         }
-        mm = ls.getMetamethod(b, a, "__lt");
+        mm = ls.getMetamethod(b, a, TagMethod.LT);
         if (mm != null) {
             return LuaValue.toBoolean(ls.callMetamethod(b, a, mm));
         }
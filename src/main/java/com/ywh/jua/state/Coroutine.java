@@ -0,0 +1,287 @@
+package com.ywh.jua.state;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.ywh.jua.api.ThreadStatus.LUA_ERRRUN;
+
+/**
+ * 线程承载的协程：每个协程在自己的承载线程（carrier）上执行主函数，与恢复它的线程轮流运行。
+ *
+ * JDK 21+ 使用虚拟线程作为承载线程，否则使用线程池中的守护平台线程：协程结束（或被回收）后承载线程回到池中，
+ * 由之后首次恢复的协程复用，空闲 60 秒后才退出；循环中反复 coroutine.wrap 时不必每次创建、启动新的平台线程。
+ * 双方通过 volatile 的 turn 交接执行权，等待的一方用 LockSupport.park 挂起（不占用 CPU），
+ * 交出执行权时 unpark 对方；turn 的读写同时保证了 Lua 栈上的数据在两个线程之间可见。
+ *
+ * 被丢弃的挂起协程（例如从 coroutine.wrap 生成器的循环中 break）不会再被恢复，它的承载线程却一直等待。
+ * 承载线程启动时登记协程的线程值（{@link LuaThread}）的虚引用，线程值被回收后由一个守护线程（reaper）
+ * 把执行权置为 KILLED 并唤醒承载线程，承载线程抛出 {@link #KILL} 展开调用栈后结束，协程的状态随之可以回收。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class Coroutine {
+
+    /**
+     * 执行权：恢复方
+     */
+    private static final int RESUMER = 0;
+
+    /**
+     * 执行权：协程
+     */
+    private static final int COROUTINE = 1;
+
+    /**
+     * 执行权：协程已被丢弃，承载线程应当结束
+     */
+    private static final int KILLED = 2;
+
+    private static final AtomicIntegerFieldUpdater<Coroutine> TURN =
+        AtomicIntegerFieldUpdater.newUpdater(Coroutine.class, "turn");
+
+    /**
+     * 结束被丢弃协程的承载线程时抛出，不被 pcall 捕获（不是 Exception），也不执行任何 Lua 代码。
+     */
+    private static final Error KILL = new Error("coroutine killed", null, false, false) {
+    };
+
+    /**
+     * 线程值被回收后，其虚引用进入该队列
+     */
+    private static final ReferenceQueue<LuaThread> QUEUE = new ReferenceQueue<>();
+
+    /**
+     * 尚未结束的承载线程登记的虚引用（虚引用本身必须保持可达才会进入队列）
+     */
+    private static final Set<Reaper> REAPERS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 正在执行协程（包括挂起中的协程）的承载线程数
+     */
+    private static final AtomicInteger CARRYING = new AtomicInteger();
+
+    /**
+     * 平台承载线程的线程池（没有虚拟线程时使用），按需创建线程，线程空闲 60 秒后退出
+     */
+    private static final ExecutorService CARRIERS = Executors.newCachedThreadPool(task -> {
+        Thread t = new Thread(task, "jua-coroutine");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * 创建虚拟线程的方法：Thread.ofVirtual().unstarted(Runnable)，JDK 21 以下为空。
+     */
+    private static final Object VIRTUAL_BUILDER;
+
+    private static final Method UNSTARTED;
+
+    static {
+        Object builder = null;
+        Method unstarted = null;
+        try {
+            builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JDK 21 以下没有虚拟线程
+            builder = null;
+        }
+        VIRTUAL_BUILDER = builder;
+        UNSTARTED = unstarted;
+
+        Thread reaper = new Thread(Coroutine::reap, "jua-coroutine-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * 协程对应的 Lua 线程
+     */
+    private final LuaStateImpl co;
+
+    /**
+     * 承载线程，首次恢复后由承载线程自己记录
+     */
+    private Thread carrier;
+
+    /**
+     * 最近一次恢复协程的线程
+     */
+    private Thread resumer;
+
+    /**
+     * 主函数是否已经执行结束
+     */
+    private boolean done;
+
+    /**
+     * 承载线程启动时登记的虚引用
+     */
+    private Reaper reaper;
+
+    /**
+     * 当前拥有执行权的一方
+     */
+    private volatile int turn = RESUMER;
+
+    Coroutine(LuaStateImpl co) {
+        this.co = co;
+    }
+
+    /**
+     * 在恢复方线程调用：把执行权交给协程，直到协程挂起或结束。
+     * 首次恢复时在承载线程上执行栈顶的主函数（参数在其上）。
+     *
+     * @param nArgs
+     */
+    void resume(int nArgs) {
+        if (done || !TURN.compareAndSet(this, RESUMER, COROUTINE)) {
+            throw new RuntimeException("cannot resume dead coroutine");
+        }
+        resumer = Thread.currentThread();
+        if (reaper == null) {
+            reaper = new Reaper((LuaThread) co.threadValue(), this);
+            REAPERS.add(reaper);
+            startCarrier(() -> run(nArgs));
+        } else {
+            LockSupport.unpark(carrier);
+        }
+        await(RESUMER);
+    }
+
+    /**
+     * 在承载线程调用：把执行权交还恢复方，直到再次被恢复。
+     */
+    void yield() {
+        turn = RESUMER;
+        LockSupport.unpark(resumer);
+        await(COROUTINE);
+    }
+
+    /**
+     * 承载线程的主体：保护模式执行主函数，结束后交还执行权。
+     *
+     * @param nArgs
+     */
+    private void run(int nArgs) {
+        // 在第一次交还执行权（写 turn）之前记录，恢复方和 reaper 读到 turn 之后一定能看到
+        carrier = Thread.currentThread();
+        CARRYING.incrementAndGet();
+        try {
+            co.coStatus = co.pCall(nArgs, -1, 0);
+        } catch (Throwable e) {
+            if (e == KILL) {
+                // 协程已被丢弃：没有恢复方在等待，也不能再访问与其他线程共享的状态
+                CARRYING.decrementAndGet();
+                return;
+            }
+            // pCall 只处理 Exception，其他错误（如 Java 栈溢出）也作为协程的错误返回。
+            co.coStatus = LUA_ERRRUN;
+            co.setTop(0);
+            co.pushString(String.valueOf(e));
+        }
+        REAPERS.remove(reaper);
+        CARRYING.decrementAndGet();
+        done = true;
+        turn = RESUMER;
+        LockSupport.unpark(resumer);
+    }
+
+    /**
+     * 挂起当前线程，直到执行权交给 expected 一方；承载线程等待时协程被丢弃则抛出 {@link #KILL}。
+     *
+     * @param expected
+     */
+    private void await(int expected) {
+        int t;
+        while ((t = turn) != expected) {
+            if (t == KILLED) {
+                throw KILL;
+            }
+            LockSupport.park(this);
+        }
+    }
+
+    /**
+     * 结束被丢弃协程的承载线程：只处理挂起中的协程（执行权在恢复方，承载线程在 yield 中等待）。
+     */
+    private void kill() {
+        if (!done && TURN.compareAndSet(this, RESUMER, KILLED)) {
+            LockSupport.unpark(carrier);
+        }
+    }
+
+    /**
+     * 把协程视为已被丢弃（测试用）：不等待线程值被回收，直接把虚引用放入队列，由 reaper 线程结束承载线程
+     */
+    void abandon() {
+        if (reaper != null) {
+            reaper.enqueue();
+        }
+    }
+
+    /**
+     * 正在执行协程的承载线程数（测试用）
+     *
+     * @return
+     */
+    static int carriers() {
+        return CARRYING.get();
+    }
+
+    /**
+     * reaper 线程的主体：等待线程值被回收，结束对应的承载线程。
+     */
+    private static void reap() {
+        for (;;) {
+            try {
+                Reaper r = (Reaper) QUEUE.remove();
+                if (REAPERS.remove(r)) {
+                    r.coroutine.kill();
+                }
+            } catch (InterruptedException e) {
+                // 守护线程，忽略中断
+            }
+        }
+    }
+
+    /**
+     * 线程值的虚引用，记录对应的协程（协程不引用线程值，因此不妨碍线程值被回收）。
+     */
+    private static final class Reaper extends PhantomReference<LuaThread> {
+
+        final Coroutine coroutine;
+
+        Reaper(LuaThread thread, Coroutine coroutine) {
+            super(thread, QUEUE);
+            this.coroutine = coroutine;
+        }
+    }
+
+    /**
+     * 在承载线程上执行协程的主体：优先使用新的虚拟线程，否则交给平台线程池（复用空闲的承载线程）。
+     *
+     * @param task
+     */
+    private static void startCarrier(Runnable task) {
+        if (VIRTUAL_BUILDER != null) {
+            try {
+                ((Thread) UNSTARTED.invoke(VIRTUAL_BUILDER, task)).start();
+                return;
+            } catch (ReflectiveOperationException e) {
+                // 退化为平台线程
+            }
+        }
+        CARRIERS.execute(task);
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.ywh.jua.state;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * 字段访问的内联缓存：每条以字符串常量为键访问表的指令（GETTABUP、GETTABLE、SETTABLE 等）一个，
+ * 记录表的布局（哈希部分的键数组，形状模式下即形状）和在该布局中找到的槽位。
+ *
+ * 形状模式的表共享形状的键数组，所以同一个构造式创建的所有对象命中同一项；
+ * 最多记录 WAYS 种形状（多态），超过时转为超多态，此后不再缓存形状模式的表。
+ * 字典模式的表（如全局变量表）各有自己的键数组，只单独记录最近一张，未命中时替换，不计入多态；
+ * 它的键数组只被弱引用，缓存不会让函数原型一直持有这张表的所有键。
+ * 重新哈希会换成新的键数组，墓碑可能被其他键复用，因此命中时再比较一次槽位上的键。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class FieldCache {
+
+    private static final int WAYS = 4;
+
+    /**
+     * 形状的键数组
+     */
+    private final Object[][] layouts = new Object[WAYS][];
+
+    /**
+     * 布局中键所在的槽位
+     */
+    private final int[] slots = new int[WAYS];
+
+    /**
+     * 槽位上的键对象
+     */
+    private final Object[] keys = new Object[WAYS];
+
+    /**
+     * 已记录的形状数，-1 表示超多态
+     */
+    private int size;
+
+    /**
+     * 最近一张字典模式的表的键数组
+     */
+    private WeakReference<Object[]> dictLayout;
+
+    private int dictSlot;
+
+    private Object dictKey;
+
+    /**
+     * 查找表的布局对应的槽位，未命中时返回 -1
+     *
+     * @param t
+     * @return
+     */
+    int lookup(LuaTable t) {
+        Object[] layout = t.shapeKeys();
+        if (layout == null) {
+            layout = t.layout();
+            WeakReference<Object[]> ref = dictLayout;
+            if (ref != null && ref.get() == layout) {
+                int slot = dictSlot;
+                return layout[slot] == dictKey ? slot : -1;
+            }
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (layouts[i] == layout) {
+                int slot = slots[i];
+                return layout[slot] == keys[i] ? slot : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 一般路径执行之后记录表当前的布局：键不在哈希部分时不记录，布局已有记录时更新其槽位。
+     *
+     * @param t
+     * @param key
+     */
+    void update(LuaTable t, Object key) {
+        Object[] layout = t.shapeKeys();
+        if (layout == null) {
+            updateDict(t, key);
+            return;
+        }
+        if (size < 0) {
+            return;
+        }
+        int i = 0;
+        while (i < size && layouts[i] != layout) {
+            i++;
+        }
+        if (i < size && layout[slots[i]] == keys[i]) {
+            return;
+        }
+        int slot = t.slotOf(key);
+        if (slot < 0) {
+            return;
+        }
+        if (i == WAYS) {
+            size = -1;
+            for (int j = 0; j < WAYS; j++) {
+                layouts[j] = null;
+                keys[j] = null;
+            }
+            return;
+        }
+        layouts[i] = layout;
+        slots[i] = slot;
+        keys[i] = layout[slot];
+        if (i == size) {
+            size++;
+        }
+    }
+
+    /**
+     * 记录字典模式的表：替换上一张表的记录
+     *
+     * @param t
+     * @param key
+     */
+    private void updateDict(LuaTable t, Object key) {
+        Object[] layout = t.layout();
+        WeakReference<Object[]> ref = dictLayout;
+        boolean same = ref != null && ref.get() == layout;
+        if (same && layout[dictSlot] == dictKey) {
+            return;
+        }
+        int slot = t.slotOf(key);
+        if (slot < 0) {
+            return;
+        }
+        if (!same) {
+            dictLayout = new WeakReference<>(layout);
+        }
+        dictSlot = slot;
+        dictKey = layout[slot];
+    }
+
+}
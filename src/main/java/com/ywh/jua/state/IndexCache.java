@@ -0,0 +1,122 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * __index 链的查找缓存：存放在元表中，记录字符串键沿该元表的 __index 表链解析得到的值（包括 nil）。
+ *
+ * 链由元表唯一确定（元表、它的 __index 表、该表的元表、下一个 __index 表……），不同的键只是在链上不同的深度找到。
+ * 缓存记录解析时经过的链上的表及其版本（见 {@link LuaTable#version}），链上的表被标记为 watched 并记住解析依赖的键
+ * （在其中查找过的键，元表的 __index），写入这些键或更换元表时递增自己的版本，写入其他字段不影响；
+ * 取值时链上任何一张表的版本变化都使缓存整体清空，其他元表的缓存不受影响。只经过表的链才缓存，__index 是函数时每次都要调用。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class IndexCache {
+
+    /**
+     * 解析结果为 nil
+     */
+    static final Object NIL = new Object();
+
+    /**
+     * 最多缓存的键数，超过时清空（例如以字符串为键的大字典作为 __index）
+     */
+    private static final int MAX_ENTRIES = 64;
+
+    private final HashMap<LuaString, Object> values = new HashMap<>();
+
+    /**
+     * 已经过的链上的表，按解析时访问的顺序
+     */
+    private LuaTable[] chain = new LuaTable[4];
+
+    /**
+     * 记录时链上各表的版本
+     */
+    private int[] versions = new int[4];
+
+    private int length;
+
+    /**
+     * 清空的次数：方法缓存（{@link MethodCache}）据此判断记录时的解析结果是否仍然有效
+     */
+    private int epoch;
+
+    /**
+     * 取缓存的解析结果：未缓存时返回 null，解析为 nil 时返回 NIL
+     *
+     * @param key
+     * @return
+     */
+    Object get(LuaString key) {
+        return validate() ? values.get(key) : null;
+    }
+
+    /**
+     * 检查链上的表是否变化，变化时清空缓存并返回 false
+     *
+     * @return
+     */
+    boolean validate() {
+        for (int i = 0; i < length; i++) {
+            if (chain[i].version != versions[i]) {
+                values.clear();
+                Arrays.fill(chain, 0, length, null);
+                length = 0;
+                epoch++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 当前的清空次数（先调用 {@link #validate()}）
+     *
+     * @return
+     */
+    int epoch() {
+        return epoch;
+    }
+
+    /**
+     * 解析时经过链上的第 depth 张表，在其中查找了键 key：尚未记录时记下它的版本；
+     * 每次都让这张表记住 key（不同的键经过同一张表），此后写入 key 才会使缓存失效
+     *
+     * @param depth
+     * @param t
+     * @param key
+     */
+    void visit(int depth, LuaTable t, LuaString key) {
+        t.watch(key);
+        if (depth < length) {
+            return;
+        }
+        if (length == chain.length) {
+            chain = Arrays.copyOf(chain, length * 2);
+            versions = Arrays.copyOf(versions, length * 2);
+        }
+        chain[length] = t;
+        versions[length] = t.version;
+        length++;
+    }
+
+    /**
+     * 记录解析结果
+     *
+     * @param key
+     * @param val
+     */
+    void put(LuaString key, Object val) {
+        if (values.size() >= MAX_ENTRIES) {
+            values.clear();
+        }
+        values.put(key, val == null ? NIL : val);
+    }
+
+}
@@ -0,0 +1,929 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.ArithOp;
+import com.ywh.jua.api.JavaFunction;
+import com.ywh.jua.api.LuaString;
+import com.ywh.jua.chunk.Prototype;
+import com.ywh.jua.number.LuaMath;
+import com.ywh.jua.stdlib.BasicLib;
+import com.ywh.jua.vm.FPB;
+
+import static com.ywh.jua.api.ArithOp.*;
+import static com.ywh.jua.state.LuaStack.*;
+import static com.ywh.jua.vm.Instruction.*;
+import static com.ywh.jua.vm.Instructions.LFIELDS_PER_FLUSH;
+
+/**
+ * 寄存器直接执行的解释器
+ *
+ * {@link com.ywh.jua.vm.Instructions} 中的指令实现只通过 LuaVM API 操作栈：先把操作数推入栈顶，运算后再替换到目标位置，
+ * 每次存取都要经过伪索引、相对索引的换算，一条指令往往对应 5 ~ 10 次栈操作。
+ * 这里按绝对槽位直接读写调用帧的寄存器 R(A)、R(B)、RK(C)，不经过栈顶中转；Java 函数仍然通过 LuaVM API 访问栈。
+ *
+ * 指令在加载或编译时已预解码（见 {@link Prototype#getOpCodes()}），按操作码序数在稠密的 switch 中分派，
+ * JIT 可以将其编译为跳转表，避免每条指令都经由 {@link com.ywh.jua.vm.OpAction} 函数式接口间接调用。
+ *
+ * 数字在寄存器中不装箱（见 {@link LuaStack#tag(int)}），算术、比较和数值 for 循环直接在 long / double 上运算，
+ * 只有当值离开寄存器（存入表、Upvalue 或传给 Java 函数）时才装箱。
+ *
+ * 函数调用与 Lua 5.3 一致：函数和参数在 R(A) 开始处原地调用，返回值复制回 R(A) 开始处。
+ * 对于 C == 0 的 CALL 指令和 B == 0 的 VARARG 指令，数量不定的结果从 R(A) 一直到栈顶，
+ * 由紧随其后的 CALL（B == 0）、RETURN（B == 0）或 SETLIST（B == 0）指令消费；其他时候栈顶都在寄存器之上。
+ *
+ * Lua 函数之间的调用不经过 Java 递归：CALL 指令推入被调用帧后在同一个循环中继续执行，RETURN 指令再切换回主调用帧，
+ * TAILCALL 指令用被调用帧替换当前帧。只有调用 Java 函数或元方法时才会产生 Java 栈帧。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class Interpreter {
+
+    private Interpreter() {
+    }
+
+    /**
+     * 逐条执行调用帧中闭包的指令，直到由 Java 代码发起调用的帧（fresh）的 RETURN 指令把返回值复制到函数所在的位置、弹出调用帧。
+     * 恢复协程时，frame 是挂起时的最内层帧，返回后继续执行外层帧。
+     *
+     * @param ls
+     * @param frame
+     */
+    static void execute(LuaStateImpl ls, LuaStack frame) {
+        // 由 Java 代码调用的帧（fresh）返回时才退出本方法，其间的 Lua 函数调用都在同一个循环中切换调用帧。
+        ValueStack values = frame.values;
+
+        newFrame:
+        for (;;) {
+            Closure cl = frame.closure;
+            Prototype proto = cl.proto;
+            int[] ops = proto.getOpCodes();
+            int[] argsA = proto.getArgsA();
+            int[] argsB = proto.getArgsB();
+            int[] argsC = proto.getArgsC();
+            Object[] k = proto.getConstants();
+            byte[] kTags = proto.getConstantTags();
+            long[] kNums = proto.getConstantNums();
+            Object[] caches = proto.getInlineCaches();
+            UpvalueHolder[] upvals = cl.upvals;
+            int nRegs = proto.getMaxStackSize() & 0xFF;
+            int base = frame.base;
+            int pc = frame.pc;
+
+            for (;;) {
+                int a = argsA[pc];
+                int b = argsB[pc];
+                int c = argsC[pc];
+                switch (ops[pc++]) {
+                    case OP_MOVE:
+                        frame.copyReg(b, a);
+                        break;
+                    case OP_LOADK:
+                        loadK(frame, k, kTags, kNums, a, b);
+                        break;
+                    case OP_LOADKX:
+                        loadK(frame, k, kTags, kNums, a, argsA[pc++]);
+                        break;
+                    case OP_LOADBOOL:
+                        frame.setReg(a, b != 0);
+                        if (c != 0) {
+                            pc++;
+                        }
+                        break;
+                    case OP_LOADNIL:
+                        for (int j = a; j <= a + b; j++) {
+                            frame.setReg(j, null);
+                        }
+                        break;
+                    case OP_GETUPVAL:
+                        frame.setReg(a, upvalue(upvals, b));
+                        break;
+                    // 以字符串常量为键的字段访问经过指令的内联缓存（getField、setField）。
+                    case OP_GETTABUP:
+                        frame.setReg(a, getField(ls, frame, caches, pc - 1, upvalue(upvals, b), k, c));
+                        break;
+                    case OP_GETTABLE:
+                        if (!getNum(frame, kTags, kNums, a, b, c)) {
+                            frame.setReg(a, getField(ls, frame, caches, pc - 1, frame.reg(b), k, c));
+                        }
+                        break;
+                    case OP_SETTABUP:
+                        setField(ls, frame, caches, pc - 1, upvalue(upvals, a), k, b, rk(frame, k, c));
+                        break;
+                    case OP_SETUPVAL: {
+                        UpvalueHolder uv = upvals[b];
+                        if (uv != null) {
+                            uv.set(frame.reg(a));
+                        }
+                        break;
+                    }
+                    case OP_SETTABLE:
+                        if (!setNum(frame, kTags, kNums, a, b, c)) {
+                            setField(ls, frame, caches, pc - 1, frame.reg(a), k, b, rk(frame, k, c));
+                        }
+                        break;
+                    case OP_NEWTABLE:
+                        frame.setReg(a, new LuaTable(FPB.fb2int(b), FPB.fb2int(c)));
+                        break;
+                    case OP_SELF:
+                        frame.copyReg(b, a + 1);
+                        frame.setReg(a, self(ls, frame, caches, pc - 1, frame.reg(b), k, c));
+                        break;
+                    // 算术、位运算：两个整数、两个数字（含整数与浮点数混合）各有一条内联的快速路径，
+                    // 常量操作数从预先拆箱的常量表中读取；字符串转换、元方法等留给 slowArith。
+                    case OP_ADD: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) + rkLong(frame, kNums, c));
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            frame.setRegDouble(a, rkDouble(frame, kTags, kNums, b) + rkDouble(frame, kTags, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPADD);
+                        }
+                        break;
+                    }
+                    case OP_SUB: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) - rkLong(frame, kNums, c));
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            frame.setRegDouble(a, rkDouble(frame, kTags, kNums, b) - rkDouble(frame, kTags, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPSUB);
+                        }
+                        break;
+                    }
+                    case OP_MUL: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) * rkLong(frame, kNums, c));
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            frame.setRegDouble(a, rkDouble(frame, kTags, kNums, b) * rkDouble(frame, kTags, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPMUL);
+                        }
+                        break;
+                    }
+                    case OP_MOD: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            frame.setRegLong(a, Math.floorMod(rkLong(frame, kNums, b), rkLong(frame, kNums, c)));
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            frame.setRegDouble(a, LuaMath.floorMod(rkDouble(frame, kTags, kNums, b),
+                                rkDouble(frame, kTags, kNums, c)));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPMOD);
+                        }
+                        break;
+                    }
+                    case OP_POW: {
+                        if (numTag(frame, kTags, b) != TAG_REF && numTag(frame, kTags, c) != TAG_REF) {
+                            frame.setRegDouble(a, Math.pow(rkDouble(frame, kTags, kNums, b),
+                                rkDouble(frame, kTags, kNums, c)));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPPOW);
+                        }
+                        break;
+                    }
+                    case OP_DIV: {
+                        if (numTag(frame, kTags, b) != TAG_REF && numTag(frame, kTags, c) != TAG_REF) {
+                            frame.setRegDouble(a, rkDouble(frame, kTags, kNums, b) / rkDouble(frame, kTags, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPDIV);
+                        }
+                        break;
+                    }
+                    case OP_IDIV: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            frame.setRegLong(a, Math.floorDiv(rkLong(frame, kNums, b), rkLong(frame, kNums, c)));
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            frame.setRegDouble(a, LuaMath.floorDiv(rkDouble(frame, kTags, kNums, b),
+                                rkDouble(frame, kTags, kNums, c)));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPIDIV);
+                        }
+                        break;
+                    }
+                    case OP_BAND: {
+                        if (numTag(frame, kTags, b) == TAG_INTEGER && numTag(frame, kTags, c) == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) & rkLong(frame, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPBAND);
+                        }
+                        break;
+                    }
+                    case OP_BOR: {
+                        if (numTag(frame, kTags, b) == TAG_INTEGER && numTag(frame, kTags, c) == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) | rkLong(frame, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPBOR);
+                        }
+                        break;
+                    }
+                    case OP_BXOR: {
+                        if (numTag(frame, kTags, b) == TAG_INTEGER && numTag(frame, kTags, c) == TAG_INTEGER) {
+                            frame.setRegLong(a, rkLong(frame, kNums, b) ^ rkLong(frame, kNums, c));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPBXOR);
+                        }
+                        break;
+                    }
+                    case OP_SHL: {
+                        if (numTag(frame, kTags, b) == TAG_INTEGER && numTag(frame, kTags, c) == TAG_INTEGER) {
+                            frame.setRegLong(a, LuaMath.shiftLeft(rkLong(frame, kNums, b), rkLong(frame, kNums, c)));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPSHL);
+                        }
+                        break;
+                    }
+                    case OP_SHR: {
+                        if (numTag(frame, kTags, b) == TAG_INTEGER && numTag(frame, kTags, c) == TAG_INTEGER) {
+                            frame.setRegLong(a, LuaMath.shiftRight(rkLong(frame, kNums, b), rkLong(frame, kNums, c)));
+                        } else {
+                            slowArith(ls, frame, k, a, b, c, LUA_OPSHR);
+                        }
+                        break;
+                    }
+                    case OP_UNM: {
+                        if (frame.tag(b) == TAG_INTEGER) {
+                            frame.setRegLong(a, -frame.regLong(b));
+                            break;
+                        }
+                        if (frame.tag(b) == TAG_FLOAT) {
+                            frame.setRegDouble(a, -frame.regDouble(b));
+                            break;
+                        }
+                        Object val = frame.reg(b);
+                        frame.setReg(a, Arithmetic.arith(val, val, LUA_OPUNM, ls));
+                        break;
+                    }
+                    case OP_BNOT: {
+                        if (frame.tag(b) == TAG_INTEGER) {
+                            frame.setRegLong(a, ~frame.regLong(b));
+                            break;
+                        }
+                        Object val = frame.reg(b);
+                        frame.setReg(a, Arithmetic.arith(val, val, LUA_OPBNOT, ls));
+                        break;
+                    }
+                    case OP_NOT:
+                        frame.setReg(a, !frame.regToBoolean(b));
+                        break;
+                    case OP_LEN:
+                        frame.setReg(a, ls.length(frame.reg(b)));
+                        break;
+                    case OP_CONCAT:
+                        frame.setReg(a, ls.concat(frame, b, c));
+                        break;
+                    case OP_JMP:
+                        pc += b;
+                        if (a != 0) {
+                            ls.closeUpvalues(a);
+                        }
+                        break;
+                    case OP_EQ: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        boolean eq;
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            eq = rkLong(frame, kNums, b) == rkLong(frame, kNums, c);
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            eq = rkDouble(frame, kTags, kNums, b) == rkDouble(frame, kTags, kNums, c);
+                        } else {
+                            eq = Comparison.eq(rk(frame, k, b), rk(frame, k, c), ls);
+                        }
+                        if (eq != (a != 0)) {
+                            pc++;
+                        }
+                        break;
+                    }
+                    case OP_LT: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        boolean lt;
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            lt = rkLong(frame, kNums, b) < rkLong(frame, kNums, c);
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            lt = rkDouble(frame, kTags, kNums, b) < rkDouble(frame, kTags, kNums, c);
+                        } else {
+                            lt = Comparison.lt(rk(frame, k, b), rk(frame, k, c), ls);
+                        }
+                        if (lt != (a != 0)) {
+                            pc++;
+                        }
+                        break;
+                    }
+                    case OP_LE: {
+                        int tb = numTag(frame, kTags, b);
+                        int tc = numTag(frame, kTags, c);
+                        boolean le;
+                        if (tb == TAG_INTEGER && tc == TAG_INTEGER) {
+                            le = rkLong(frame, kNums, b) <= rkLong(frame, kNums, c);
+                        } else if (tb != TAG_REF && tc != TAG_REF) {
+                            le = rkDouble(frame, kTags, kNums, b) <= rkDouble(frame, kTags, kNums, c);
+                        } else {
+                            le = Comparison.le(rk(frame, k, b), rk(frame, k, c), ls);
+                        }
+                        if (le != (a != 0)) {
+                            pc++;
+                        }
+                        break;
+                    }
+                    case OP_TEST:
+                        if (frame.regToBoolean(a) != (c != 0)) {
+                            pc++;
+                        }
+                        break;
+                    case OP_TESTSET:
+                        if (frame.regToBoolean(b) == (c != 0)) {
+                            frame.copyReg(b, a);
+                        } else {
+                            pc++;
+                        }
+                        break;
+                    case OP_CALL: {
+                        // R(A), ... ,R(A+C-2) := R(A)(R(A+1), ... ,R(A+B-1))
+                        // 函数和参数原地调用：栈顶设为 R(A+B)，B == 0 时参数一直到栈顶。
+                        int nArgs = b != 0 ? b - 1 : values.top - base - a - 1;
+                        values.top = base + a + nArgs + 1;
+                        Object fn = frame.reg(a);
+                        // Lua 函数：推入被调用帧，在同一个循环中继续执行，由 RETURN 指令切换回来。
+                        frame.pc = pc;
+                        if (fn instanceof Closure && ((Closure) fn).proto != null) {
+                            frame = ls.preCallLua(nArgs, c - 1, (Closure) fn);
+                            continue newFrame;
+                        }
+                        // Java 函数、__call 元方法：返回值放在 R(A) 开始处，C == 0 时全部留下，栈顶即其末尾。
+                        ls.callFromLua(nArgs, c - 1);
+                        if (c != 0) {
+                            values.top = base + nRegs;
+                        }
+                        break;
+                    }
+                    case OP_TAILCALL: {
+                        // return R(A)(R(A+1), ... ,R(A+B-1))
+                        int nArgs = b != 0 ? b - 1 : values.top - base - a - 1;
+                        Object fn = frame.reg(a);
+                        // Lua 函数：把函数和参数移到当前函数所在的位置，用被调用帧替换当前帧，调用栈不增长。
+                        if (fn instanceof Closure && ((Closure) fn).proto != null) {
+                            int func = frame.func;
+                            int nResults = frame.nResults;
+                            ls.closeUpvalues(frame, 0);
+                            values.copy(base + a, func, nArgs + 1);
+                            values.setTop(func + nArgs + 1);
+                            boolean fresh = frame.fresh;
+                            ls.popLuaStack();
+                            frame = ls.preCallLua(nArgs, nResults, (Closure) fn);
+                            frame.fresh = fresh;
+                            continue newFrame;
+                        }
+                        // Java 函数：返回值全部留在 R(A) 开始处，由随后 B == 0 的 RETURN 指令返回。
+                        values.top = base + a + nArgs + 1;
+                        frame.pc = pc;
+                        ls.callFromLua(nArgs, -1);
+                        break;
+                    }
+                    case OP_RETURN: {
+                        // return R(A), ... ,R(A+B-2)，B == 0 时一直到栈顶。
+                        int n = b != 0 ? b - 1 : values.top - base - a;
+                        int nResults = frame.nResults;
+                        ls.postCall(frame, base + a, n);
+                        if (frame.fresh) {
+                            return;
+                        }
+                        // 回到主调用帧的 CALL 指令之后；需要固定数量的返回值时，恢复栈顶。
+                        frame = ls.stack;
+                        if (nResults >= 0) {
+                            values.top = frame.base + (frame.closure.proto.getMaxStackSize() & 0xFF);
+                        }
+                        continue newFrame;
+                    }
+                    case OP_FORLOOP: {
+                        // R(A)+=R(A+2); if R(A) <?= R(A+1) then { pc+=sBx; R(A+3)=R(A) }
+                        // 整数循环：R(A+1) 是 FORPREP 预先算出的剩余迭代次数（无符号），递减到 0 时结束，不再比较限制。
+                        if (frame.tag(a) == TAG_INTEGER) {
+                            long count = frame.regLong(a + 1);
+                            if (count != 0) {
+                                long idx = frame.regLong(a) + frame.regLong(a + 2);
+                                frame.setRegLong(a + 1, count - 1);
+                                frame.setRegLong(a, idx);
+                                frame.setRegLong(a + 3, idx);
+                                pc += b;
+                            }
+                            break;
+                        }
+                        double step = frame.regDouble(a + 2);
+                        double idx = frame.regDouble(a) + step;
+                        double limit = frame.regDouble(a + 1);
+                        if (step > 0 ? idx <= limit : limit <= idx) {
+                            frame.setRegDouble(a, idx);
+                            frame.setRegDouble(a + 3, idx);
+                            pc += b;
+                        }
+                        break;
+                    }
+                    case OP_FORPREP:
+                        // 与 Lua 5.4 相同，在循环开始之前确定循环的类型，并执行第一次迭代的检查：
+                        // 需要执行时直接进入循环体（R(A+3) 为初始值），否则跳过 sBx 所指的 FORLOOP 指令。
+                        if (!forPrep(frame, a)) {
+                            pc += b + 1;
+                        }
+                        break;
+                    case OP_TFORCALL: {
+                        // R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));
+                        // pairs、ipairs 的迭代器直接在表中查找下一个键值对，不调用函数。
+                        if (tableForCall(frame, a, c)) {
+                            break;
+                        }
+                        // 把迭代器函数和两个参数复制到 R(A+3) 开始处原地调用，与 CALL 指令相同。
+                        int cb = a + 3;
+                        values.ensure(base + cb + 3);
+                        frame.copyReg(a, cb);
+                        frame.copyReg(a + 1, cb + 1);
+                        frame.copyReg(a + 2, cb + 2);
+                        values.top = base + cb + 3;
+                        Object fn = frame.reg(cb);
+                        frame.pc = pc;
+                        if (fn instanceof Closure && ((Closure) fn).proto != null) {
+                            frame = ls.preCallLua(2, c, (Closure) fn);
+                            continue newFrame;
+                        }
+                        ls.callFromLua(2, c);
+                        values.top = base + nRegs;
+                        break;
+                    }
+                    case OP_TFORLOOP: {
+                        if (frame.tag(a + 1) != TAG_REF || frame.reg(a + 1) != null) {
+                            frame.copyReg(a + 1, a);
+                            pc += b;
+                        }
+                        break;
+                    }
+                    case OP_SETLIST: {
+                        c = c > 0 ? c - 1 : argsA[pc++];
+                        // B == 0 时值一直到栈顶，完成后恢复栈顶。
+                        boolean bIsZero = b == 0;
+                        if (bIsZero) {
+                            b = values.top - base - a - 1;
+                        }
+                        // 表由 NEWTABLE 刚刚创建，直接写入（不触发元方法），数字不装箱。
+                        LuaTable t = (LuaTable) frame.reg(a);
+                        long idx = (long) c * LFIELDS_PER_FLUSH;
+                        for (int j = 1; j <= b; j++) {
+                            byte tag = frame.tag(a + j);
+                            if (tag != TAG_REF) {
+                                t.putNum(++idx, tag, frame.regLong(a + j));
+                            } else {
+                                t.put(++idx, frame.reg(a + j));
+                            }
+                        }
+                        if (bIsZero) {
+                            values.setTop(base + nRegs);
+                        }
+                        break;
+                    }
+                    case OP_CLOSURE:
+                        frame.setReg(a, ls.newLuaClosure(b));
+                        break;
+                    case OP_VARARG: {
+                        if (b > 1) {
+                            frame.copyVarargs(a, b - 1);
+                        } else if (b == 0) {
+                            // 全部变长参数放在 R(A) 开始处，栈顶即其末尾。
+                            values.top = base + a;
+                            frame.pushVarargs(-1);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new RuntimeException("invalid opcode: " + ops[pc - 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 数值 for 循环的准备（lua-5.4/src/lvm.c#forprep()）：
+     * 初始值和步长都是整数时为整数循环，把 R(A+1) 替换为迭代次数减一（按无符号数计算，不会溢出），浮点数限制按步长方向取整；
+     * 否则把三个值都转换为浮点数。R(A) 和 R(A+3) 置为初始值。
+     *
+     * @param frame
+     * @param a
+     * @return 是否至少执行一次循环体
+     */
+    private static boolean forPrep(LuaStack frame, int a) {
+        if (frame.tag(a) == TAG_INTEGER && frame.tag(a + 2) == TAG_INTEGER) {
+            long init = frame.regLong(a);
+            long step = frame.regLong(a + 2);
+            if (step == 0) {
+                throw new RuntimeException("'for' step is zero");
+            }
+            long limit;
+            if (frame.tag(a + 1) == TAG_INTEGER) {
+                limit = frame.regLong(a + 1);
+            } else {
+                Double f = LuaValue.toFloat(frame.reg(a + 1));
+                if (f == null) {
+                    throw new RuntimeException("'for' limit must be a number");
+                }
+                double fl = step < 0 ? Math.ceil(f) : Math.floor(f);
+                if (fl >= -0x1p63 && fl < 0x1p63) {
+                    limit = (long) fl;
+                } else if (fl > 0 && step > 0) {
+                    limit = Long.MAX_VALUE;
+                } else if (fl < 0 && step < 0) {
+                    limit = Long.MIN_VALUE;
+                } else {
+                    // 超出整数范围且与步长方向相反，或者是 NaN
+                    return false;
+                }
+            }
+            if (step > 0 ? init > limit : init < limit) {
+                return false;
+            }
+            long count = step > 0
+                ? Long.divideUnsigned(limit - init, step)
+                : Long.divideUnsigned(init - limit, -(step + 1) + 1L);
+            frame.setRegLong(a + 1, count);
+            frame.setRegLong(a + 3, init);
+            return true;
+        }
+        Double init = LuaValue.toFloat(frame.reg(a));
+        Double limit = LuaValue.toFloat(frame.reg(a + 1));
+        Double step = LuaValue.toFloat(frame.reg(a + 2));
+        if (init == null) {
+            throw new RuntimeException("'for' initial value must be a number");
+        }
+        if (limit == null) {
+            throw new RuntimeException("'for' limit must be a number");
+        }
+        if (step == null) {
+            throw new RuntimeException("'for' step must be a number");
+        }
+        if (step == 0) {
+            throw new RuntimeException("'for' step is zero");
+        }
+        if (step > 0 ? !(init <= limit) : !(limit <= init)) {
+            return false;
+        }
+        frame.setRegDouble(a, init);
+        frame.setRegDouble(a + 1, limit);
+        frame.setRegDouble(a + 2, step);
+        frame.setRegDouble(a + 3, init);
+        return true;
+    }
+
+    /**
+     * 取常量或寄存器的值（iABC 模式中 OpArgK 类型的操作数）
+     *
+     * @param frame
+     * @param k
+     * @param rk
+     * @return
+     */
+    private static Object rk(LuaStack frame, Object[] k, int rk) {
+        return rk > 0xFF ? k[rk & 0xFF] : frame.reg(rk);
+    }
+
+    /**
+     * 常量或寄存器的数字类型：TAG_INTEGER、TAG_FLOAT，非数字为 TAG_REF
+     *
+     * @param frame
+     * @param kTags
+     * @param rk
+     * @return
+     */
+    private static int numTag(LuaStack frame, byte[] kTags, int rk) {
+        return rk > 0xFF ? kTags[rk & 0xFF] : frame.tag(rk);
+    }
+
+    /**
+     * 取常量或寄存器的整数，调用方保证类型为 TAG_INTEGER
+     *
+     * @param frame
+     * @param kNums
+     * @param rk
+     * @return
+     */
+    private static long rkLong(LuaStack frame, long[] kNums, int rk) {
+        return rk > 0xFF ? kNums[rk & 0xFF] : frame.regLong(rk);
+    }
+
+    /**
+     * 取常量或寄存器的浮点数（整数转换为浮点数），调用方保证是数字
+     *
+     * @param frame
+     * @param kTags
+     * @param kNums
+     * @param rk
+     * @return
+     */
+    private static double rkDouble(LuaStack frame, byte[] kTags, long[] kNums, int rk) {
+        if (rk > 0xFF) {
+            int i = rk & 0xFF;
+            return kTags[i] == TAG_INTEGER ? (double) kNums[i] : Double.longBitsToDouble(kNums[i]);
+        }
+        return frame.regDouble(rk);
+    }
+
+    /**
+     * 取常量或寄存器中数字的拆箱表示（整数值或浮点数的位模式），调用方保证是数字
+     *
+     * @param frame
+     * @param kNums
+     * @param rk
+     * @return
+     */
+    private static long rkBits(LuaStack frame, long[] kNums, int rk) {
+        return rk > 0xFF ? kNums[rk & 0xFF] : frame.regLong(rk);
+    }
+
+    /**
+     * R(A) := R(B)[RK(C)] 的快速路径：整数键命中表的拆箱数组部分时直接复制数字，不装箱。
+     * 值为 nil 时可能需要 __index，返回 false 交给一般路径。
+     *
+     * @param frame
+     * @param kTags
+     * @param kNums
+     * @param a
+     * @param b
+     * @param c
+     * @return
+     */
+    private static boolean getNum(LuaStack frame, byte[] kTags, long[] kNums, int a, int b, int c) {
+        Object t = frame.reg(b);
+        if (!(t instanceof LuaTable) || numTag(frame, kTags, c) != TAG_INTEGER) {
+            return false;
+        }
+        LuaTable tbl = (LuaTable) t;
+        long key = rkLong(frame, kNums, c);
+        switch (tbl.numTag(key)) {
+            case TAG_INTEGER:
+                frame.setRegLong(a, tbl.numAt(key));
+                return true;
+            case TAG_FLOAT:
+                frame.setRegDouble(a, Double.longBitsToDouble(tbl.numAt(key)));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * R(A)[RK(B)] := RK(C) 的快速路径：没有元表的表以整数键存入数字时不装箱。
+     *
+     * @param frame
+     * @param kTags
+     * @param kNums
+     * @param a
+     * @param b
+     * @param c
+     * @return
+     */
+    private static boolean setNum(LuaStack frame, byte[] kTags, long[] kNums, int a, int b, int c) {
+        Object t = frame.reg(a);
+        if (!(t instanceof LuaTable) || ((LuaTable) t).metatable != null || numTag(frame, kTags, b) != TAG_INTEGER) {
+            return false;
+        }
+        int tc = numTag(frame, kTags, c);
+        if (tc == TAG_REF) {
+            return false;
+        }
+        ((LuaTable) t).putNum(rkLong(frame, kNums, b), (byte) tc, rkBits(frame, kNums, c));
+        return true;
+    }
+
+    /**
+     * 取 t[RK(rk)]：键是字符串常量时经过指令 pc 的内联缓存，命中且值不为 nil 时直接读取槽位，
+     * 否则（值为 nil 时可能需要 __index）走一般路径，未命中时再更新缓存。
+     * 寄存器中的键每次执行都可能不同，不使用缓存。
+     *
+     * @param ls
+     * @param frame
+     * @param caches
+     * @param pc
+     * @param t
+     * @param k
+     * @param rk
+     * @return
+     */
+    private static Object getField(LuaStateImpl ls, LuaStack frame, Object[] caches, int pc, Object t, Object[] k, int rk) {
+        Object key = rk(frame, k, rk);
+        if (rk > 0xFF && key instanceof LuaString && t instanceof LuaTable) {
+            LuaTable tbl = (LuaTable) t;
+            FieldCache fc = fieldCache(caches, pc);
+            int slot = fc.lookup(tbl);
+            if (slot >= 0) {
+                Object v = tbl.slotValue(slot);
+                if (v != null) {
+                    return v;
+                }
+            } else {
+                Object v = ls.getTableValue(t, key, false);
+                fc.update(tbl, key);
+                return v;
+            }
+        }
+        return ls.getTableValue(t, key, false);
+    }
+
+    /**
+     * t[RK(rk)] = val：键是字符串常量时经过指令 pc 的内联缓存，命中且原来的值不为 nil（不需要 __newindex）时直接写入槽位，
+     * 否则走一般路径，未命中时再更新缓存。
+     *
+     * @param ls
+     * @param frame
+     * @param caches
+     * @param pc
+     * @param t
+     * @param k
+     * @param rk
+     * @param val
+     */
+    private static void setField(LuaStateImpl ls, LuaStack frame, Object[] caches, int pc, Object t, Object[] k, int rk, Object val) {
+        Object key = rk(frame, k, rk);
+        if (rk > 0xFF && key instanceof LuaString && t instanceof LuaTable) {
+            LuaTable tbl = (LuaTable) t;
+            FieldCache fc = fieldCache(caches, pc);
+            int slot = fc.lookup(tbl);
+            if (slot >= 0 && tbl.slotValue(slot) != null) {
+                tbl.setSlotValue(slot, val);
+                return;
+            }
+            ls.setTable(t, key, val, false);
+            if (slot < 0) {
+                fc.update(tbl, key);
+            }
+            return;
+        }
+        ls.setTable(t, key, val, false);
+    }
+
+    /**
+     * 取方法 obj[RK(rk)]：键是字符串常量、接收者是表时经过指令 pc 的方法缓存，
+     * 命中时不必查找接收者的元表和 __index 链，未命中时走一般路径并更新缓存。
+     *
+     * @param ls
+     * @param frame
+     * @param caches
+     * @param pc
+     * @param obj
+     * @param k
+     * @param rk
+     * @return
+     */
+    private static Object self(LuaStateImpl ls, LuaStack frame, Object[] caches, int pc, Object obj, Object[] k, int rk) {
+        Object key = rk(frame, k, rk);
+        if (rk > 0xFF && key instanceof LuaString && obj instanceof LuaTable) {
+            LuaTable t = (LuaTable) obj;
+            MethodCache mc = (MethodCache) caches[pc];
+            if (mc == null) {
+                mc = new MethodCache();
+                caches[pc] = mc;
+            }
+            Object m = mc.lookup(t, (LuaString) key);
+            if (m == null) {
+                m = ls.getTableValue(obj, key, false);
+                mc.update(t, (LuaString) key, m);
+            }
+            return m;
+        }
+        return ls.getTableValue(obj, key, false);
+    }
+
+    /**
+     * 指令 pc 的字段缓存，第一次执行时创建
+     *
+     * @param caches
+     * @param pc
+     * @return
+     */
+    private static FieldCache fieldCache(Object[] caches, int pc) {
+        FieldCache fc = (FieldCache) caches[pc];
+        if (fc == null) {
+            fc = new FieldCache();
+            caches[pc] = fc;
+        }
+        return fc;
+    }
+
+    /**
+     * R(A) := Kst(Bx)：数字常量直接复制拆箱的值，不经过 instanceof 和拆箱
+     *
+     * @param frame
+     * @param k
+     * @param kTags
+     * @param kNums
+     * @param a
+     * @param bx
+     */
+    private static void loadK(LuaStack frame, Object[] k, byte[] kTags, long[] kNums, int a, int bx) {
+        switch (kTags[bx]) {
+            case TAG_INTEGER:
+                frame.setRegLong(a, kNums[bx]);
+                break;
+            case TAG_FLOAT:
+                frame.setRegDouble(a, Double.longBitsToDouble(kNums[bx]));
+                break;
+            default:
+                frame.setReg(a, k[bx]);
+                break;
+        }
+    }
+
+    /**
+     * 取 Upvalue 的值
+     *
+     * @param upvals
+     * @param idx
+     * @return
+     */
+    private static Object upvalue(UpvalueHolder[] upvals, int idx) {
+        UpvalueHolder uv = upvals[idx];
+        return uv != null ? uv.get() : null;
+    }
+
+    /**
+     * TFORCALL 的快速路径：迭代器是 next（pairs 返回的迭代器）或 ipairs 的迭代器、状态是表时，
+     * 由控制变量 R(A+2)（上一个键或下标）在表中直接定位下一个键值对，写入 R(A+3)、R(A+4)，其余的循环变量置为 nil。
+     * next 是原始访问，不受元表影响；ipairs 的迭代器会触发 __index，因此只用于没有 __index 元方法的表。
+     *
+     * @param frame
+     * @param a
+     * @param c
+     * @return 是否已经完成本次迭代
+     */
+    private static boolean tableForCall(LuaStack frame, int a, int c) {
+        Object fn = frame.reg(a);
+        Object s = frame.reg(a + 1);
+        if (!(fn instanceof Closure) || !(s instanceof LuaTable)) {
+            return false;
+        }
+        JavaFunction f = ((Closure) fn).javaFunc;
+        LuaTable t = (LuaTable) s;
+        int n;
+        if (f == BasicLib.NEXT) {
+            int i = frame.tag(a + 2) == TAG_INTEGER ? t.next(frame.regLong(a + 2)) : t.next(frame.reg(a + 2));
+            if (i < 0) {
+                n = 0;
+            } else {
+                if (t.inArray(i)) {
+                    frame.setRegLong(a + 3, i + 1L);
+                } else {
+                    frame.setReg(a + 3, t.keyAt(i));
+                }
+                if (c > 1) {
+                    frame.setReg(a + 4, t.valueAt(i));
+                }
+                n = 2;
+            }
+        } else if (f == BasicLib.IPAIRS_ITER && frame.tag(a + 2) == TAG_INTEGER && !t.hasMetafield(TagMethod.INDEX)) {
+            long i = frame.regLong(a + 2) + 1;
+            byte tag = t.numTag(i);
+            Object v = tag == TAG_REF ? t.get(i) : null;
+            if (tag == TAG_REF && v == null) {
+                n = 0;
+            } else {
+                frame.setRegLong(a + 3, i);
+                if (c > 1) {
+                    if (tag == TAG_INTEGER) {
+                        frame.setRegLong(a + 4, t.numAt(i));
+                    } else if (tag == TAG_FLOAT) {
+                        frame.setRegDouble(a + 4, Double.longBitsToDouble(t.numAt(i)));
+                    } else {
+                        frame.setReg(a + 4, v);
+                    }
+                }
+                n = 2;
+            }
+        } else {
+            return false;
+        }
+        for (int j = a + 3 + n; j <= a + 2 + c; j++) {
+            frame.setReg(j, null);
+        }
+        return true;
+    }
+
+    /**
+     * R(A) := RK(B) op RK(C) 的慢速路径：操作数不都是数字（字符串转换、元方法），或者位运算的操作数是浮点数。
+     * 与解释器的主循环分开，避免装箱和元方法查找的代码被内联进快速路径。
+     *
+     * @param ls
+     * @param frame
+     * @param k
+     * @param a
+     * @param b
+     * @param c
+     * @param op
+     */
+    private static void slowArith(LuaStateImpl ls, LuaStack frame, Object[] k, int a, int b, int c, ArithOp op) {
+        frame.setReg(a, Arithmetic.arith(rk(frame, k, b), rk(frame, k, c), op, ls));
+    }
+
+}
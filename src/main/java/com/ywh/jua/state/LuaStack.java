@@ -1,7 +1,8 @@
 package com.ywh.jua.state;
 
+import com.ywh.jua.api.KFunction;
+
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -12,6 +13,7 @@ import static com.ywh.jua.api.LuaState.LUA_REGISTRYINDEX;
  * 容量是 n，栈顶索引 是 top，则有效索引（写）范围为 [1, top]，可接受索引（读写）范围 [1, n]，无效范围相当于存放 nil 值。
  *
  * 实际上栈中的一个位置视为一个寄存器。
+ * 每个调用帧是线程值栈（{@link ValueStack}）上从 base 开始的窗口，栈顶与值栈共用，即当前帧的栈顶就是值栈的栈顶。
  *
  * @author ywh
  * @since 2020/8/18 11:26
@@ -19,9 +21,29 @@ import static com.ywh.jua.api.LuaState.LUA_REGISTRYINDEX;
 class LuaStack {
 
     /**
-     * 自动扩容，无需判断是否有空闲
+     * 槽位类型：引用（值在 slots 中，nil、布尔、字符串、表、闭包等）
+     */
+    static final byte TAG_REF = 0;
+
+    /**
+     * 槽位类型：整数（值在 nums 中）
+     */
+    static final byte TAG_INTEGER = 1;
+
+    /**
+     * 槽位类型：浮点数（值的位模式在 nums 中）
+     */
+    static final byte TAG_FLOAT = 2;
+
+    /**
+     * 线程的值栈
      */
-    private final ArrayList<Object> slots;
+    final ValueStack values;
+
+    /**
+     * 寄存器 R(0) 在值栈中的位置
+     */
+    final int base;
 
     // ========== 调用栈相关 ==========
 
@@ -36,9 +58,40 @@ class LuaStack {
     Closure closure;
 
     /**
-     * 变长参数
+     * 被调用函数在值栈中的位置，返回值从这里开始存放
+     */
+    int func;
+
+    /**
+     * 主调用方需要的返回值数量，-1 表示全部
+     */
+    int nResults;
+
+    /**
+     * 是否由 Java 代码发起的调用：Lua 函数的 RETURN 指令在此退出解释器的循环；
+     * 由解释器直接调用的 Java 函数（如 coroutine.yield）则不是。
      */
-    List<Object> varargs;
+    boolean fresh;
+
+    /**
+     * Java 函数正在通过 pCallK 调用其他函数时的延续函数，其间协程挂起后由它完成该 Java 函数（见 {@link LuaStateImpl#pCallK}）
+     */
+    KFunction k;
+
+    /**
+     * pCallK 出错时恢复的栈顶（被调用函数所在的位置）
+     */
+    int kTop;
+
+    /**
+     * 变长参数在值栈中的起始位置（位于 base 之下）
+     */
+    int varargBase;
+
+    /**
+     * 变长参数数量
+     */
+    int nVarargs;
 
     /**
      * 程序计数器
@@ -56,7 +109,12 @@ class LuaStack {
     Map<Integer, UpvalueHolder> openuvs;
 
     public LuaStack(int stackSize) {
-        this.slots = new ArrayList<>(stackSize);
+        this(new ValueStack(stackSize), 0);
+    }
+
+    LuaStack(ValueStack values, int base) {
+        this.values = values;
+        this.base = base;
     }
 
     /**
@@ -65,7 +123,16 @@ class LuaStack {
      * @return
      */
     int top() {
-        return slots.size();
+        return values.top - base;
+    }
+
+    /**
+     * 设置栈顶（多退少补）
+     *
+     * @param newTop
+     */
+    void setTop(int newTop) {
+        values.setTop(base + newTop);
     }
 
     /**
@@ -74,12 +141,53 @@ class LuaStack {
      * @param val
      */
     void push(Object val) {
-        if (slots.size() > 10_000) {
-            throw new StackOverflowError();
-        }
-        slots.add(val);
+        values.ensure(values.top + 1);
+        setAbs(values.top++, val);
+    }
+
+    /**
+     * 整数入栈（不装箱）
+     *
+     * @param n
+     */
+    void pushLong(long n) {
+        values.ensure(values.top + 1);
+        setRegLong(values.top++ - base, n);
     }
 
+    /**
+     * 浮点数入栈（不装箱）
+     *
+     * @param n
+     */
+    void pushDouble(double n) {
+        values.ensure(values.top + 1);
+        setRegDouble(values.top++ - base, n);
+    }
+
+    /**
+     * 寄存器的值入栈（连同槽位类型，不装箱）
+     *
+     * @param r
+     */
+    void pushReg(int r) {
+        values.ensure(values.top + 1);
+        values.copy(base + r, values.top++, 1);
+    }
+
+    /**
+     * 出栈到寄存器（连同槽位类型，不装箱）
+     *
+     * @param r
+     */
+    void popReg(int r) {
+        if (values.top <= base) {
+            throw new RuntimeException("stack underflow!");
+        }
+        values.copy(--values.top, base + r, 1);
+        values.slots[values.top] = null;
+        values.tags[values.top] = TAG_REF;
+    }
 
     /**
      * 出栈
@@ -87,7 +195,14 @@ class LuaStack {
      * @return
      */
     Object pop() {
-        return slots.remove(slots.size() - 1);
+        if (values.top <= base) {
+            throw new RuntimeException("stack underflow!");
+        }
+        int i = --values.top;
+        Object val = getAbs(i);
+        values.slots[i] = null;
+        values.tags[i] = TAG_REF;
+        return val;
     }
 
     /**
@@ -114,13 +229,42 @@ class LuaStack {
      */
     List<Object> popN(int n) {
         List<Object> vals = new ArrayList<>(n);
-        for (int i = 0; i < n; i++) {
-            vals.add(pop());
+        int from = values.top - n;
+        for (int i = from; i < values.top; i++) {
+            vals.add(getAbs(i));
         }
-        Collections.reverse(vals);
+        values.setTop(from);
         return vals;
     }
 
+    /**
+     * 把 n 个变长参数推入栈顶（多退少补），n < 0 表示全部。
+     *
+     * @param n
+     */
+    void pushVarargs(int n) {
+        if (n < 0) {
+            n = nVarargs;
+        }
+        int m = Math.min(n, nVarargs);
+        values.ensure(values.top + n);
+        values.copy(varargBase, values.top, m);
+        values.clear(values.top + m, values.top + n);
+        values.top += n;
+    }
+
+    /**
+     * 把 n 个变长参数复制到寄存器 R(A) ~ R(A+n-1)（多退少补）。
+     *
+     * @param a
+     * @param n
+     */
+    void copyVarargs(int a, int n) {
+        int m = Math.min(n, nVarargs);
+        values.copy(varargBase, base + a, m);
+        values.clear(base + a + m, base + a + n);
+    }
+
     /**
      * 绝对索引
      *
@@ -131,7 +275,7 @@ class LuaStack {
         if (idx >= 0 || idx <= LUA_REGISTRYINDEX) {
             return idx;
         } else {
-            return idx + slots.size() + 1;
+            return idx + top() + 1;
         }
     }
 
@@ -152,7 +296,7 @@ class LuaStack {
             return true;
         }
         int absIdx = absIndex(idx);
-        return absIdx > 0 && absIdx <= slots.size();
+        return absIdx > 0 && absIdx <= top();
     }
 
 
@@ -178,9 +322,10 @@ class LuaStack {
         if (idx == LUA_REGISTRYINDEX) {
             return state.registry;
         }
+        // 通过 API 取值时展开绳索
         int absIdx = absIndex(idx);
-        if (absIdx > 0 && absIdx <= slots.size()) {
-            return slots.get(absIdx - 1);
+        if (absIdx > 0 && absIdx <= top()) {
+            return Rope.flat(reg(absIdx - 1));
         } else {
             return null;
         }
@@ -205,7 +350,151 @@ class LuaStack {
             state.registry = (LuaTable) val;
             return;
         }
-        slots.set(absIndex(idx) - 1, val);
+        int absIdx = absIndex(idx);
+        if (absIdx <= 0 || absIdx > top()) {
+            throw new IndexOutOfBoundsException("invalid index: " + idx);
+        }
+        setReg(absIdx - 1, val);
+    }
+
+    /**
+     * 按寄存器取值：寄存器 R(r) 即本帧的第 r 个槽位（从 0 开始），不做伪索引、相对索引的换算。
+     * 执行 Lua 函数时栈顶不低于寄存器数量，所以寄存器总是有效的。
+     *
+     * @param r
+     * @return
+     */
+    Object reg(int r) {
+        return getAbs(base + r);
+    }
+
+    /**
+     * 按寄存器设值：Long、Double 拆箱存入数字槽位
+     *
+     * @param r
+     * @param val
+     */
+    void setReg(int r, Object val) {
+        setAbs(base + r, val);
+    }
+
+    /**
+     * 按值栈位置取值，数字在此装箱。
+     *
+     * @param i
+     * @return
+     */
+    private Object getAbs(int i) {
+        switch (values.tags[i]) {
+            case TAG_INTEGER:
+                return values.nums[i];
+            case TAG_FLOAT:
+                return Double.longBitsToDouble(values.nums[i]);
+            default:
+                return values.slots[i];
+        }
+    }
+
+    /**
+     * 按值栈位置设值
+     *
+     * @param i
+     * @param val
+     */
+    private void setAbs(int i, Object val) {
+        if (val instanceof Long) {
+            setRegLong(i - base, (Long) val);
+        } else if (val instanceof Double) {
+            setRegDouble(i - base, (Double) val);
+        } else {
+            values.slots[i] = val;
+            values.tags[i] = TAG_REF;
+        }
+    }
+
+    /**
+     * 寄存器的槽位类型
+     *
+     * @param r
+     * @return
+     */
+    byte tag(int r) {
+        return values.tags[base + r];
+    }
+
+    /**
+     * 按寄存器取整数，调用方保证槽位类型为 TAG_INTEGER
+     *
+     * @param r
+     * @return
+     */
+    long regLong(int r) {
+        return values.nums[base + r];
+    }
+
+    /**
+     * 按寄存器取浮点数，调用方保证槽位类型为 TAG_INTEGER 或 TAG_FLOAT
+     *
+     * @param r
+     * @return
+     */
+    double regDouble(int r) {
+        int i = base + r;
+        return values.tags[i] == TAG_INTEGER ? (double) values.nums[i] : Double.longBitsToDouble(values.nums[i]);
+    }
+
+    /**
+     * 按寄存器设整数
+     *
+     * @param r
+     * @param n
+     */
+    void setRegLong(int r, long n) {
+        int i = base + r;
+        values.nums[i] = n;
+        values.tags[i] = TAG_INTEGER;
+        values.slots[i] = null;
+    }
+
+    /**
+     * 按寄存器设浮点数
+     *
+     * @param r
+     * @param n
+     */
+    void setRegDouble(int r, double n) {
+        int i = base + r;
+        values.nums[i] = Double.doubleToRawLongBits(n);
+        values.tags[i] = TAG_FLOAT;
+        values.slots[i] = null;
+    }
+
+    /**
+     * 寄存器间复制（连同槽位类型，不装箱）
+     *
+     * @param from
+     * @param to
+     */
+    void copyReg(int from, int to) {
+        int i = base + from, j = base + to;
+        values.slots[j] = values.slots[i];
+        values.nums[j] = values.nums[i];
+        values.tags[j] = values.tags[i];
+    }
+
+    /**
+     * 寄存器的值转换为布尔值：数字总为真
+     *
+     * @param r
+     * @return
+     */
+    boolean regToBoolean(int r) {
+        int i = base + r;
+        if (values.tags[i] != TAG_REF) {
+            return true;
+        }
+        Object val = values.slots[i];
+        return val != null && (!(val instanceof Boolean) || (Boolean) val);
     }
 
     /**
@@ -220,7 +509,20 @@ class LuaStack {
      * @param to
      */
     void reverse(int from, int to) {
-        Collections.reverse(slots.subList(from, to + 1));
+        Object[] slots = values.slots;
+        long[] nums = values.nums;
+        byte[] tags = values.tags;
+        for (from += base, to += base; from < to; from++, to--) {
+            Object tmp = slots[from];
+            slots[from] = slots[to];
+            slots[to] = tmp;
+            long n = nums[from];
+            nums[from] = nums[to];
+            nums[to] = n;
+            byte t = tags[from];
+            tags[from] = tags[to];
+            tags[to] = t;
+        }
     }
 
 }
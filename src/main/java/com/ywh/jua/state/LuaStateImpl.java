@@ -10,10 +10,11 @@ import com.ywh.jua.vm.Instruction;
 import com.ywh.jua.vm.OpCode;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.ywh.jua.api.ArithOp.LUA_OPBNOT;
 import static com.ywh.jua.api.ArithOp.LUA_OPUNM;
@@ -32,30 +33,84 @@ import static com.ywh.jua.constant.MetaConstant.*;
  */
 public class LuaStateImpl implements LuaState, LuaVM {
 
+    /**
+     * 是否通过 LuaVM API 执行 Lua 函数的指令（-Djua.vm.api=true），默认由 {@link Interpreter} 直接读写寄存器。
+     */
+    private static final boolean API_DISPATCH = Boolean.getBoolean("jua.vm.api");
+
+    /**
+     * 协程实现方式（-Djua.coroutine）：
+     *      thread：默认，每个协程在自己的承载线程上执行（见 {@link Coroutine}），可以在任意位置挂起；
+     *      continuation：挂起时保存调用帧链（各帧的 pc 和寄存器窗口）并返回到恢复方，不占用线程；
+     *      可以跨越通过 pCallK 调用的 Java 函数（如 pcall）挂起，但不能跨越其他 Java 函数（如元方法、string.gsub 的替换函数）挂起。
+     */
+    private static final boolean CONTINUATION = "continuation".equals(System.getProperty("jua.coroutine"));
+
+    /**
+     * continuation 模式下挂起协程的信号：从 yield 抛出，经过解释器回到 resume，沿途的调用帧保留在调用栈中。
+     */
+    private static final RuntimeException YIELD = new RuntimeException("coroutine yield", null, false, false) {
+    };
+
+    /**
+     * 已关闭线程的调用帧：值栈已归还 {@link StackPool}，栈中没有任何值（协程状态为 dead）。
+     */
+    private static final LuaStack CLOSED = new LuaStack(new ValueStack(0), 0);
+
+    /**
+     * __index 链的最大长度，超过时认为链中有环（lua-5.3.4/src/lvm.c#MAXTAGLOOP）
+     */
+    private static final int MAXTAGLOOP = 2000;
+
+    /**
+     * 注册表中存放各类型（表除外）共享元表的键："_MT" + 类型名，按 {@link LuaType} 的序数取
+     */
+    private static final LuaString[] MT_KEYS = new LuaString[LuaType.values().length];
+
+    static {
+        for (LuaType t : LuaType.values()) {
+            MT_KEYS[t.ordinal()] = LuaString.valueOf("_MT" + t);
+        }
+    }
+
     /**
      * Lua 注册表（实现全局变量等）
      * 注册表是全局状态，每个 Lua 解释器实例都有自己的注册表。
      * Lua API 没有提供专门的方法操作注册表，通过伪索引访问。
      */
-    LuaTable registry = new LuaTable(8, 0);
+    LuaTable registry;
+
+    /**
+     * 已结束协程的值栈池，与注册表一样由主线程和它创建的所有线程共享
+     */
+    StackPool pool;
+
+    /**
+     * 短字符串的驻留表，与注册表一样由主线程和它创建的所有线程共享
+     */
+    StringTable strings;
 
     /**
      * 使用单向链表实现函数调用栈，头部是栈顶，尾部是栈底。
      * 入栈即在链表头部插入一个节点，让这个节点成为新的头部。
-     * FIXME
+     * 所有调用帧共享同一个值栈（{@link ValueStack}），每个调用帧只记录自己的起始位置。
      */
-    LuaStack stack = new LuaStack(LUA_MINSTACK);
+    LuaStack stack;
 
-    ThreadStatus coStatus;
+    /**
+     * 协程状态
+     */
+    ThreadStatus coStatus = LUA_OK;
 
-    LuaStateImpl coCaller;
+    /**
+     * 承载协程的线程，主线程为空
+     */
+    Coroutine coroutine;
 
     /**
-     * 线程协作变量（模拟 Golang 的 chan）
-     * coChan == 0 表示首次开始运行（需要启动一个 Golang 协程来执行其主函数）；
-     * 否则线程恢复运行，修改为非 0 的值即可。
+     * 协程在 Lua 中的线程值（见 {@link LuaThread}），主线程为空（线程值就是主线程本身）
      */
-    AtomicInteger coChan = new AtomicInteger(0);
+    private WeakReference<LuaThread> threadValue;
 
     /**
      * 创建注册表，放入一个全局环境（存放全局变量）和主线程环境；
@@ -63,9 +118,24 @@ public class LuaStateImpl implements LuaState, LuaVM {
      *
      */
     public LuaStateImpl() {
+        this(new LuaTable(8, 0), new StackPool(), new StringTable(), new ValueStack());
         registry.put(LUA_RIDX_MAINTHREAD, this);
         registry.put(LUA_RIDX_GLOBALS, new LuaTable(0, 20));
-        LuaStack stack = new LuaStack(LUA_MINSTACK);
+    }
+
+    /**
+     * 创建线程：与父线程共享注册表、值栈池和字符串驻留表，只推入一个基于 values 的空调用帧。
+     *
+     * @param registry
+     * @param pool
+     * @param strings
+     * @param values
+     */
+    private LuaStateImpl(LuaTable registry, StackPool pool, StringTable strings, ValueStack values) {
+        this.registry = registry;
+        this.pool = pool;
+        this.strings = strings;
+        LuaStack stack = new LuaStack(values, 0);
         stack.state = this;
         pushLuaStack(stack);
     }
@@ -86,7 +156,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
     /**
      * 调用帧出栈
      */
-    private void popLuaStack() {
+    void popLuaStack() {
         LuaStack top = this.stack;
         this.stack = top.prev;
         top.prev = null;
@@ -223,16 +293,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
             throw new RuntimeException("stack underflow!");
         }
 
-        int n = stack.top() - newTop;
-        if (n > 0) {
-            for (int i = 0; i < n; i++) {
-                stack.pop();
-            }
-        } else if (n < 0) {
-            for (int i = 0; i > n; i--) {
-                stack.push(null);
-            }
-        }
+        stack.setTop(newTop);
     }
 
     /**
@@ -422,15 +483,25 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public String toString(int idx) {
         Object val = stack.get(idx);
-        if (val instanceof String) {
-            return (String) val;
-        } else if (val instanceof Long || val instanceof Double) {
+        if (val instanceof LuaString || val instanceof Long || val instanceof Double) {
             return val.toString();
         } else {
             return null;
         }
     }
 
+    @Override
+    public LuaString toLuaString(int idx) {
+        Object val = stack.get(idx);
+        if (val instanceof LuaString) {
+            return (LuaString) val;
+        } else if (val instanceof Long || val instanceof Double) {
+            return LuaString.valueOf(val.toString());
+        } else {
+            return null;
+        }
+    }
+
     // ========== 指定类型的值入栈 ==========
 
     /**
@@ -458,7 +529,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void pushInteger(long n) {
-        stack.push(n);
+        stack.pushLong(n);
     }
 
     /**
@@ -468,7 +539,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void pushNumber(double n) {
-        stack.push(n);
+        stack.pushDouble(n);
     }
 
     /**
@@ -478,7 +549,17 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void pushString(String s) {
-        stack.push(s);
+        stack.push(s == null ? null : strings.intern(LuaString.valueOf(s)));
+    }
+
+    /**
+     * 字符串类型入栈（不经过编码转换）
+     *
+     * @param s
+     */
+    @Override
+    public void pushLuaString(LuaString s) {
+        stack.push(s == null ? null : strings.intern(s));
     }
 
     /**
@@ -585,7 +666,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public LuaType getField(int idx, String k) {
         Object t = stack.get(idx);
-        return getTable(t, k, false);
+        return getTable(t, strings.intern(LuaString.valueOf(k)), false);
     }
 
     /**
@@ -610,26 +691,44 @@ public class LuaStateImpl implements LuaState, LuaVM {
      * @return
      */
     private LuaType getTable(Object t, Object k, boolean raw) {
+        Object v = getTableValue(t, k, raw);
+        stack.push(v);
+        return LuaValue.typeOf(v);
+    }
+
+    /**
+     * 从指定表中根据指定键取出值（不入栈），供直接读写寄存器的指令使用。
+     *
+     * @param t
+     * @param k
+     * @param raw
+     * @return
+     */
+    Object getTableValue(Object t, Object k, boolean raw) {
         if (t instanceof LuaTable) {
             LuaTable tbl = (LuaTable) t;
             Object v = tbl.get(k);
             // __index 元方法对象既可以是函数（t[k] 表示以 t 和 k 为参数调用该函数）也可以是表（以 k 为键访问 t）。
-            if (raw || v != null || !tbl.hasMetafield(INDEX)) {
-                stack.push(v);
-                return LuaValue.typeOf(v);
+            if (raw || v != null || !tbl.hasMetafield(TagMethod.INDEX)) {
+                return v;
+            }
+            // __index 是表时沿表链查找，结果缓存在元表中。
+            if (k instanceof LuaString) {
+                Object mf = tbl.metatable.metamethod(TagMethod.INDEX);
+                if (mf instanceof LuaTable) {
+                    return indexChain(tbl.metatable, (LuaTable) mf, (LuaString) k);
+                }
             }
         }
         // raw 字段为 true，则忽略元方法。
         // 如果 t[k] 的 t 是表，且键已经在表中，或者需要忽略元方法，或者表没有索引元方法，则维持原来逻辑，否则尝试调用元方法。
         if (!raw) {
-            Object mf = getMetafield(t, INDEX);
+            Object mf = getMetamethod(t, TagMethod.INDEX);
             if (mf != null) {
                 if (mf instanceof LuaTable) {
-                    return getTable(mf, k, false);
+                    return getTableValue(mf, k, false);
                 } else if (mf instanceof Closure) {
-                    Object v = callMetamethod(t, k, mf);
-                    stack.push(v);
-                    return LuaValue.typeOf(v);
+                    return callMetamethod(t, k, mf);
                 }
             }
         }
@@ -663,7 +762,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
     public void setField(int idx, String k) {
         Object t = stack.get(idx);
         Object v = stack.pop();
-        setTable(t, k, v, false);
+        setTable(t, strings.intern(LuaString.valueOf(k)), v, false);
     }
 
     /**
@@ -685,18 +784,18 @@ public class LuaStateImpl implements LuaState, LuaVM {
      * @param v
      * @param raw
      */
-    private void setTable(Object t, Object k, Object v, boolean raw) {
+    void setTable(Object t, Object k, Object v, boolean raw) {
         // 区别于“__index”，“__newindex” 用于当执行 t[k] = v 时，如果 t 不是表，或者 k 在表中不存在。
 
         if (t instanceof LuaTable) {
             LuaTable tbl = (LuaTable) t;
-            if (raw || tbl.get(k) != null || !tbl.hasMetafield(NEWINDEX)) {
+            if (raw || tbl.get(k) != null || !tbl.hasMetafield(TagMethod.NEWINDEX)) {
                 tbl.put(k, v);
                 return;
             }
         }
         if (!raw) {
-            Object mf = getMetafield(t, NEWINDEX);
+            Object mf = getMetamethod(t, TagMethod.NEWINDEX);
             if (mf != null) {
                 if (mf instanceof LuaTable) {
                     setTable(mf, k, v, false);
@@ -735,7 +834,9 @@ public class LuaStateImpl implements LuaState, LuaVM {
     public ThreadStatus load(byte[] chunk, String chunkName, String mode) {
 
         // 解析字节数组为函数原型，把实例化为闭包的函数原型推入栈顶。
-        Prototype proto = isBinaryChunk(chunk) ? undump(chunk) : compile(new String(chunk), chunkName);
+        Prototype proto = isBinaryChunk(chunk) ? undump(chunk) : compile(new String(chunk, StandardCharsets.UTF_8), chunkName);
+        // 字符串常量在加载时驻留
+        strings.internConstants(proto);
         Closure closure = new Closure(proto);
         stack.push(closure);
 
@@ -762,6 +863,28 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void call(int nArgs, int nResults) {
+        call(nArgs, nResults, true);
+    }
+
+    /**
+     * 由解释器的 CALL、TFORCALL 指令调用 Java 函数（或经由 __call 元方法调用）：
+     * 被调用帧直接返回到解释器的循环中，其中的 yield 可以挂起整个调用链（见 {@link #yield(int)}）。
+     *
+     * @param nArgs
+     * @param nResults
+     */
+    void callFromLua(int nArgs, int nResults) {
+        call(nArgs, nResults, false);
+    }
+
+    /**
+     * 调用函数
+     *
+     * @param nArgs
+     * @param nResults
+     * @param fresh    是否由 Java 代码发起调用
+     */
+    private void call(int nArgs, int nResults, boolean fresh) {
 
         // 取出被调用函数
         Object val = stack.get(-(nArgs + 1));
@@ -770,7 +893,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
         // 试图“调用”一个非函数类型（闭包）的值，则会判断它是否存在元方法；
         // 如果存在，则以该值为第一个参数，后跟原方法调用的其他参数来调用元方法。
         if (f == null) {
-            Object mf = getMetafield(val, "__call");
+            Object mf = getMetamethod(val, TagMethod.CALL);
             if (mf instanceof Closure) {
                 stack.push(f);
                 insert(-(nArgs + 2));
@@ -785,7 +908,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
             if (c.proto != null) {
                 callLuaClosure(nArgs, nResults, c);
             } else {
-                callJavaClosure(nArgs, nResults, c);
+                callJavaClosure(nArgs, nResults, c, fresh);
             }
         } else {
             throw new RuntimeException("not function!");
@@ -800,40 +923,105 @@ public class LuaStateImpl implements LuaState, LuaVM {
      * @param c
      */
     private void callLuaClosure(int nArgs, int nResults, Closure c) {
+        LuaStack newStack = preCallLua(nArgs, nResults, c);
+        newStack.fresh = true;
+
+        // 默认由 {@link Interpreter} 直接读写调用帧的寄存器执行，开启 {@link #API_DISPATCH} 时改为逐条调用基于 LuaVM API 的指令实现。
+        // 执行被调用函数的指令，直到 RETURN 指令把返回值复制到函数所在的位置、弹出被调用帧（恢复主调用帧为“当前帧”）。
+        if (API_DISPATCH) {
+            runLuaClosureByApi();
+            // 返回值在被调用帧的寄存器之上。
+            int nRegs = c.proto.getMaxStackSize() & 0xFF;
+            int first = newStack.base + nRegs;
+            postCall(newStack, first, newStack.values.top - first);
+        } else {
+            Interpreter.execute(this, newStack);
+        }
+    }
+
+    /**
+     * 准备执行 Lua 函数：创建被调用帧并推入调用栈（成为“当前帧”），返回被调用帧。
+     * 函数和参数值已经在主调用帧的栈顶：[func][arg1 ... argN]，参数原地成为被调用帧的前几个寄存器。
+     *
+     * @param nArgs
+     * @param nResults
+     * @param c
+     * @return
+     */
+    LuaStack preCallLua(int nArgs, int nResults, Closure c) {
 
         // 从函数原型取出执行函数需要的寄存器数量、声明的固定参数数量以及是否 vararg 函数。
-        int nRegs = c.proto.getMaxStackSize();
+        int nRegs = c.proto.getMaxStackSize() & 0xFF;
         int nParams = c.proto.getNumParams();
         boolean isVararg = c.proto.getIsVararg() == 1;
 
-        // 创建被调用帧（适当扩大，为指令实现函数预留少量栈空间），指定闭包。
-        LuaStack newStack = new LuaStack(nRegs + LUA_MINSTACK);
-        newStack.closure = c;
-
-        // 把函数和参数值从主调用帧弹出。
-        List<Object> funcAndArgs = stack.popN(nArgs + 1);
+        ValueStack values = stack.values;
+        int funcIdx = values.top - nArgs - 1;
+        int base = funcIdx + 1;
+        LuaStack newStack;
 
-        // 按照固定参数数量，把参数传入被调用帧。
-        // 如果被调用函数是 vararg 参数，且传入参数的数量多于固定参数数量，需要把 vararg 参数记录在被调用帧。
-        newStack.pushN(funcAndArgs.subList(1, funcAndArgs.size()), nParams);
+        // 如果被调用函数是 vararg 参数，且传入参数的数量多于固定参数数量，
+        // 则把固定参数复制到 vararg 参数之上：[func][fixed][varargs][fixed]，vararg 参数留在被调用帧的寄存器之下；
+        // 否则丢弃多余的参数。
         if (nArgs > nParams && isVararg) {
-            newStack.varargs = funcAndArgs.subList(nParams + 1, funcAndArgs.size());
+            base += nArgs;
+            values.ensure(base + nParams);
+            values.copy(funcIdx + 1, base, nParams);
+            values.top = base + nParams;
+            newStack = new LuaStack(values, base);
+            newStack.varargBase = funcIdx + 1 + nParams;
+            newStack.nVarargs = nArgs - nParams;
+        } else {
+            values.setTop(base + Math.min(nArgs, nParams));
+            newStack = new LuaStack(values, base);
         }
+        newStack.state = this;
+        newStack.closure = c;
+        newStack.func = funcIdx;
+        newStack.nResults = nResults;
 
-        // 被调用帧入栈（成为“当前帧”），且超出 nRegs 部分为溢出。
+        // 被调用帧入栈，清空固定参数之上的寄存器（缺少的参数、上次调用留下的值）。
+        // 适当扩大容量，为指令实现函数预留少量栈空间。
+        values.ensure(base + nRegs + LUA_MINSTACK);
         pushLuaStack(newStack);
-        setTop(nRegs);
+        values.setTop(base + nRegs);
+        return newStack;
+    }
 
-        // 执行被调用函数的指令，调用完成后弹出被调用帧（恢复主调用帧为“当前帧”）。
-        runLuaClosure();
+    /**
+     * Lua 函数返回：闭合仍然开放的 Upvalue，弹出被调用帧，
+     * 把值栈 [first, first + n) 处的返回值复制到函数所在的位置（多退少补）。
+     *
+     * @param frame
+     * @param first
+     * @param n
+     */
+    void postCall(LuaStack frame, int first, int n) {
+        closeUpvalues(frame, 0);
         popLuaStack();
+        moveResults(first, n, frame.func, frame.nResults);
+    }
 
-        // 如果有返回值，则从被调用帧中获取，并放入当前帧。
-        if (nResults != 0) {
-            List<Object> results = newStack.popN(newStack.top() - nRegs);
-            //stack.check(results.size())
-            stack.pushN(results, nResults);
+    /**
+     * 把值栈 [from, from + n) 处的返回值复制到 to 处，按需要的数量多退少补（nResults 为 -1 时全部保留），并设置栈顶。
+     *
+     * @param from
+     * @param n
+     * @param to
+     * @param nResults
+     */
+    private void moveResults(int from, int n, int to, int nResults) {
+        ValueStack values = stack.values;
+        if (nResults < 0) {
+            nResults = n;
         }
+        values.ensure(to + nResults);
+        int m = Math.min(n, nResults);
+        values.copy(from, to, m);
+        values.clear(to + m, to + nResults);
+        int oldTop = values.top;
+        values.top = to + nResults;
+        values.clear(values.top, oldTop);
     }
 
     /**
@@ -843,35 +1031,31 @@ public class LuaStateImpl implements LuaState, LuaVM {
      * @param nResults
      * @param c
      */
-    private void callJavaClosure(int nArgs, int nResults, Closure c) {
-        // 创建新调用帧。
-        LuaStack newStack = new LuaStack(nArgs + LUA_MINSTACK);
+    private void callJavaClosure(int nArgs, int nResults, Closure c, boolean fresh) {
+        // 创建新调用帧，参数原地成为被调用帧的栈，Java 闭包留在其下。
+        ValueStack values = stack.values;
+        int funcIdx = values.top - nArgs - 1;
+        LuaStack newStack = new LuaStack(values, funcIdx + 1);
         newStack.state = this;
         newStack.closure = c;
-
-        // 把参数值从主调用帧中弹出，推入被调用帧后，Java 闭包从主调用帧中弹出。
-        if (nArgs > 0) {
-            newStack.pushN(stack.popN(nArgs), nArgs);
-        }
-        stack.pop();
+        newStack.func = funcIdx;
+        newStack.nResults = nResults;
+        newStack.fresh = fresh;
+        values.ensure(values.top + LUA_MINSTACK);
 
         // 把被调用帧推入调用栈，成为当前帧；执行 Java 函数，完成后把被调用帧同调用栈弹出（主调用帧又成为当前帧）。
         pushLuaStack(newStack);
         int r = c.javaFunc.invoke(this);
         popLuaStack();
 
-        // 如果有返回值，则把返回值从被调用帧弹出、推入主调用帧（多退少补）。
-        if (nResults != 0) {
-            List<Object> results = newStack.popN(r);
-            //stack.check(results.size())
-            stack.pushN(results, nResults);
-        }
+        // 返回值在栈顶，复制到 Java 闭包所在的位置（多退少补）。
+        moveResults(values.top - r, r, funcIdx, nResults);
     }
 
     /**
-     * 逐条执行被调用函数的指令，直到遇到 RETURN 指令。
+     * 逐条执行被调用函数的指令（通过 {@link OpCode#getAction()} 分派，经由 LuaVM API 操作栈），直到遇到 RETURN 指令。
      */
-    private void runLuaClosure() {
+    private void runLuaClosureByApi() {
         for (;;) {
             int i = fetch();
             OpCode opCode = Instruction.getOpCode(i);
@@ -892,25 +1076,30 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void len(int idx) {
+        stack.push(length(stack.get(idx)));
+    }
 
-        Object val = stack.get(idx);
-        // 该值为字符串，则求长度后推入栈顶。
-        if (val instanceof String) {
-            pushInteger(((String) val).length());
-            return;
+    /**
+     * 求长度（不入栈），供直接读写寄存器的指令使用。
+     *
+     * @param val
+     * @return
+     */
+    Object length(Object val) {
+        // 该值为字符串，则直接求长度（绳索不必展开）。
+        if (val instanceof LuaString || val instanceof Rope) {
+            return (long) Rope.length(val);
         }
 
         // 该值的类型存在对应的长度元方法。
-        Object mm = getMetamethod(val, val, "__len");
+        Object mm = getMetamethod(val, val, TagMethod.LEN);
         if (mm != null) {
-            stack.push(callMetamethod(val, val, mm));
-            return;
+            return callMetamethod(val, val, mm);
         }
 
         // 该值为表。
         if (val instanceof LuaTable) {
-            pushInteger(((LuaTable) val).length());
-            return;
+            return (long) ((LuaTable) val).length();
         }
         throw new RuntimeException("length error!");
     }
@@ -926,30 +1115,147 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public void concat(int n) {
         if (n == 0) {
-            stack.push("");
+            stack.push(LuaString.EMPTY);
         } else if (n >= 2) {
-            for (int i = 1; i < n; i++) {
-                // 栈顶两个值都为字符串。
-                if (isString(-1) && isString(-2)) {
-                    String s2 = toString(-1);
-                    String s1 = toString(-2);
-                    pop(2);
-                    pushString(s1 + s2);
-                    continue;
-                }
+            int top = stack.top();
+            Object result = concat(stack, top - n, top - 1);
+            stack.setTop(top - n);
+            stack.push(result);
+        }
+    }
 
-                // 栈顶两个值至少一个不为字符串，查找类型对应的拼接元方法。
-                Object b = stack.pop();
-                Object a = stack.pop();
-                Object mm = getMetamethod(a, b, "__concat");
-                if (mm != null) {
-                    stack.push(callMetamethod(a, b, mm));
-                    continue;
+    /**
+     * 拼接 frame 中寄存器 R(from) ~ R(to) 的值（lua-5.3.4/src/lvm.c#luaV_concat()）：
+     * 从右往左，连续的字符串（或数字）一次拼接（见 {@link #join}），不必两两复制；遇到其他值时两两调用 __concat 元方法。
+     *
+     * @param frame
+     * @param from
+     * @param to
+     * @return
+     */
+    Object concat(LuaStack frame, int from, int to) {
+        Object result = frame.reg(to);
+        int j = to;
+        while (j > from) {
+            if (isStringOrNumber(result) && isStringOrNumber(frame.reg(j - 1))) {
+                int i = j - 1;
+                while (i > from && isStringOrNumber(frame.reg(i - 1))) {
+                    i--;
                 }
+                result = join(frame, i, j - 1, result);
+                j = i;
+            } else {
+                result = concatValues(frame.reg(j - 1), result);
+                j--;
+            }
+        }
+        return result;
+    }
 
-                throw new RuntimeException("concatenation error!");
+    /**
+     * 拼接 R(from) ~ R(last) 和 tail（都是字符串、绳索或数字）：
+     * 较短的相邻部分复制到同一个缓冲区（短的结果驻留）；结果较长时，长字符串和绳索按引用保留，生成 {@link Rope}。
+     *
+     * @param frame
+     * @param from
+     * @param last
+     * @param tail
+     * @return
+     */
+    private Object join(LuaStack frame, int from, int last, Object tail) {
+        int n = last - from + 2;
+        Object[] parts = new Object[n];
+        int length = 0;
+        boolean rope = false;
+        for (int i = 0; i < n; i++) {
+            Object v = stringOf(i < n - 1 ? frame.reg(from + i) : tail);
+            int len = Rope.length(v);
+            rope |= len >= Rope.MIN_LENGTH;
+            length += len;
+            parts[i] = v;
+        }
+        if (!rope) {
+            return strings.intern(copy(parts, 0, n, length));
+        }
+        // 从左往右合并：短的部分攒起来，遇到长的部分时一次复制，连同长的部分一起接到结果上。
+        Object result = null;
+        int start = 0, pending = 0;
+        for (int i = 0; i < n; i++) {
+            Object p = parts[i];
+            int len = Rope.length(p);
+            if (len < Rope.MIN_LENGTH) {
+                pending += len;
+                continue;
+            }
+            if (pending > 0) {
+                LuaString s = copy(parts, start, i, pending);
+                result = result == null ? s : new Rope(result, s);
+                pending = 0;
             }
+            result = result == null ? p : new Rope(result, p);
+            start = i + 1;
+        }
+        if (pending > 0) {
+            result = new Rope(result, copy(parts, start, n, pending));
+        }
+        return result;
+    }
+
+    /**
+     * 把 parts[from, to)（都是字符串，绳索先展开）复制到同一个长度为 length 的字节数组中
+     *
+     * @param parts
+     * @param from
+     * @param to
+     * @param length
+     * @return
+     */
+    private static LuaString copy(Object[] parts, int from, int to, int length) {
+        byte[] buf = new byte[length];
+        int pos = 0;
+        for (int i = from; i < to; i++) {
+            LuaString s = (LuaString) Rope.flat(parts[i]);
+            s.getBytes(0, s.length(), buf, pos);
+            pos += s.length();
+        }
+        return LuaString.valueOf(buf);
+    }
+
+    /**
+     * 拼接两个值，至少一个不是字符串（或数字）时调用 __concat 元方法。
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    private Object concatValues(Object a, Object b) {
+        // 两个值都为字符串（或数值）。
+        if (isStringOrNumber(a) && isStringOrNumber(b)) {
+            Object[] parts = {stringOf(a), stringOf(b)};
+            return strings.intern(copy(parts, 0, 2, Rope.length(parts[0]) + Rope.length(parts[1])));
         }
+
+        // 两个值至少一个不为字符串，查找类型对应的拼接元方法。
+        Object mm = getMetamethod(a, b, TagMethod.CONCAT);
+        if (mm != null) {
+            return callMetamethod(a, b, mm);
+        }
+
+        throw new RuntimeException("concatenation error!");
+    }
+
+    /**
+     * 数字转换为字符串，字符串和绳索不变
+     *
+     * @param val
+     * @return
+     */
+    private static Object stringOf(Object val) {
+        return val instanceof Long || val instanceof Double ? LuaString.valueOf(val.toString()) : val;
+    }
+
+    private static boolean isStringOrNumber(Object val) {
+        return val instanceof LuaString || val instanceof Rope || val instanceof Long || val instanceof Double;
     }
 
     /**
@@ -1007,7 +1313,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public int registerCount() {
-        return stack.closure.proto.getMaxStackSize();
+        return stack.closure.proto.getMaxStackSize() & 0xFF;
     }
 
     /**
@@ -1017,13 +1323,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void loadVararg(int n) {
-        List<Object> varargs = stack.varargs != null ? stack.varargs : Collections.emptyList();
-        if (n < 0) {
-            n = varargs.size();
-        }
-
-        //stack.check(n)
-        stack.pushN(varargs, n);
+        stack.pushVarargs(n);
     }
 
     /**
@@ -1033,9 +1333,18 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void loadProto(int idx) {
+        stack.push(newLuaClosure(idx));
+    }
+
+    /**
+     * 把指定的子函数原型实例化为闭包（不入栈），供直接读写寄存器的指令使用。
+     *
+     * @param idx
+     * @return
+     */
+    Closure newLuaClosure(int idx) {
         Prototype proto = stack.closure.proto.getProtos()[idx];
         Closure closure = new Closure(proto);
-        stack.push(closure);
 
         // 根据函数原型中的 Upvalue 表来初始化闭包的 Upvalue 值
         for (int i = 0; i < proto.getUpvalues().length; i++) {
@@ -1062,6 +1371,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
                 closure.upvals[i] = stack.closure.upvals[uvIdx];
             }
         }
+        return closure;
     }
 
     /**
@@ -1072,12 +1382,23 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void closeUpvalues(int a) {
-        if (stack.openuvs == null) {
+        closeUpvalues(stack, a - 1);
+    }
+
+    /**
+     * 闭合调用帧中寄存器索引不小于 idx 的开放 Upvalue。
+     * 调用帧返回（或因错误退出）前必须全部闭合，之后这些寄存器所在的值栈槽位会被其他调用帧复用。
+     *
+     * @param frame
+     * @param idx
+     */
+    void closeUpvalues(LuaStack frame, int idx) {
+        if (frame.openuvs == null) {
             return;
         }
-        for (Iterator<UpvalueHolder> it = stack.openuvs.values().iterator(); it.hasNext(); ) {
+        for (Iterator<UpvalueHolder> it = frame.openuvs.values().iterator(); it.hasNext(); ) {
             UpvalueHolder uv = it.next();
-            if (uv.index >= a - 1) {
+            if (uv.index >= idx) {
                 uv.migrate();
                 it.remove();
             }
@@ -1156,7 +1477,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
     public LuaType getGlobal(String name) {
         // 从注册表中取出全局环境。
         Object t = registry.get(LUA_RIDX_GLOBALS);
-        return getTable(t, name, false);
+        return getTable(t, strings.intern(LuaString.valueOf(name)), false);
     }
 
     /**
@@ -1168,7 +1489,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
     public void setGlobal(String name) {
         Object t = registry.get(LUA_RIDX_GLOBALS);
         Object v = stack.pop();
-        setTable(t, name, v, false);
+        setTable(t, strings.intern(LuaString.valueOf(name)), v, false);
     }
 
     /**
@@ -1228,8 +1549,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
         if (val instanceof LuaTable) {
             return ((LuaTable) val).metatable;
         }
-        String key = "_MT" + LuaValue.typeOf(val);
-        Object mt = registry.get(key);
+        Object mt = registry.get(MT_KEYS[LuaValue.typeOf(val).ordinal()]);
         return mt != null ? (LuaTable) mt : null;
     }
 
@@ -1240,23 +1560,74 @@ public class LuaStateImpl implements LuaState, LuaVM {
     private void setMetatable(Object val, LuaTable mt) {
         // 判断值是否为表，是则直接修改其元表字段，否则根据变量类型把元表存储在注册表中。
         if (val instanceof LuaTable) {
-            ((LuaTable) val).metatable = mt;
+            LuaTable tbl = (LuaTable) val;
+            if (tbl.watched) {
+                tbl.version++;
+            }
+            tbl.metatable = mt;
             return;
         }
-        String key = "_MT" + LuaValue.typeOf(val);
-        registry.put(key, mt);
+        registry.put(MT_KEYS[LuaValue.typeOf(val).ordinal()], mt);
     }
 
     /**
-     * 获取元字段
+     * 沿 mt 的 __index 表链查找字符串键（h 是 mt.__index）：命中 mt 中的缓存时一次查找即可；
+     * 否则逐个查找链上的表并在缓存中记录它们的版本，只经过表的链把结果记录到缓存中，遇到函数时交给 getTableValue 调用。
+     *
+     * @param mt
+     * @param h
+     * @param k
+     * @return
+     */
+    private Object indexChain(LuaTable mt, LuaTable h, LuaString k) {
+        IndexCache cache = mt.indexCache;
+        if (cache == null) {
+            cache = new IndexCache();
+            mt.indexCache = cache;
+        }
+        Object v = cache.get(k);
+        if (v != null) {
+            return v == IndexCache.NIL ? null : v;
+        }
+        int depth = 0;
+        cache.visit(depth++, mt, TagMethod.INDEX.event);
+        for (int loop = 0; loop < MAXTAGLOOP; loop++) {
+            cache.visit(depth++, h, k);
+            v = h.get(k);
+            if (v != null) {
+                cache.put(k, v);
+                return v;
+            }
+            LuaTable m = h.metatable;
+            if (m == null) {
+                cache.put(k, null);
+                return null;
+            }
+            // 没有 __index 时也要记录 m，此后加入 __index 才会使缓存失效
+            cache.visit(depth++, m, TagMethod.INDEX.event);
+            Object next = m.metamethod(TagMethod.INDEX);
+            if (next == null) {
+                cache.put(k, null);
+                return null;
+            }
+            if (!(next instanceof LuaTable)) {
+                return getTableValue(h, k, false);
+            }
+            h = (LuaTable) next;
+        }
+        throw new RuntimeException("'__index' chain too long; possibly a loop");
+    }
+
+    /**
+     * 获取元方法：元表记录了已知不存在的元方法，不必每次查找
      *
      * @param val
-     * @param fieldName
+     * @param tm
      * @return
      */
-    private Object getMetafield(Object val, String fieldName) {
+    private Object getMetamethod(Object val, TagMethod tm) {
         LuaTable mt = getMetatable(val);
-        return mt != null ? mt.get(fieldName) : null;
+        return mt != null ? mt.metamethod(tm) : null;
     }
 
     /**
@@ -1264,13 +1635,13 @@ public class LuaStateImpl implements LuaState, LuaVM {
      *
      * @param a
      * @param b
-     * @param mmName
+     * @param tm
      * @return
      */
-    Object getMetamethod(Object a, Object b, String mmName) {
-        Object mm = getMetafield(a, mmName);
+    Object getMetamethod(Object a, Object b, TagMethod tm) {
+        Object mm = getMetamethod(a, tm);
         if (mm == null) {
-            mm = getMetafield(b, mmName);
+            mm = getMetamethod(b, tm);
         }
         return mm;
     }
@@ -1303,8 +1674,8 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public int rawLen(int idx) {
         Object val = stack.get(idx);
-        if (val instanceof String) {
-            return ((String) val).length();
+        if (val instanceof LuaString) {
+            return ((LuaString) val).length();
         } else if (val instanceof LuaTable) {
             return ((LuaTable) val).length();
         } else {
@@ -1394,15 +1765,14 @@ public class LuaStateImpl implements LuaState, LuaVM {
         Object val = stack.get(idx);
         if (val instanceof LuaTable) {
             LuaTable t = (LuaTable) val;
-            // 上一个键从栈顶弹出，再取其下一个键。
-            // key 为空，
+            // 上一个键从栈顶弹出（为 nil 时从头开始），由它定位下一个键值对的遍历位置。
             Object key = stack.pop();
-            Object nextKey = t.nextKey(key);
+            int i = t.next(key);
 
             // 遍历未结束，把下一个键值对推入栈中，返回 true；
-            if (nextKey != null) {
-                stack.push(nextKey);
-                stack.push(t.get(nextKey));
+            if (i >= 0) {
+                stack.push(t.keyAt(i));
+                stack.push(t.valueAt(i));
                 return true;
             }
 
@@ -1432,23 +1802,38 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public LuaStateImpl newThread(){
-        // 创建线程及其调用栈。
-        LuaStateImpl thread = new LuaStateImpl();
-        LuaStack stack = new LuaStack(LUA_MINSTACK);
-
-        // 子线程与父线程共享全局变量。
-        thread.registry = this.registry;
-        stack.state = thread;
-        thread.pushLuaStack(stack);
+        // 创建线程及其调用栈：子线程与父线程共享全局变量，优先复用已结束协程的值栈；承载线程在首次恢复时从线程池取得。
+        LuaStateImpl thread = new LuaStateImpl(registry, pool, strings, pool.acquire());
+        if (!CONTINUATION) {
+            thread.coroutine = new Coroutine(thread);
+        }
 
-        // 子线程添加到父线程调用栈中。
-        this.stack.push(thread);
+        // 子线程的线程值添加到父线程调用栈中。
+        this.stack.push(thread.threadValue());
         return thread;
     }
 
+    /**
+     * 线程在 Lua 中的值：主线程是它本身，协程是唯一的 {@link LuaThread}
+     *
+     * @return
+     */
+    Object threadValue() {
+        if (isMainThread()) {
+            return this;
+        }
+        LuaThread t = threadValue != null ? threadValue.get() : null;
+        if (t == null) {
+            t = new LuaThread(this);
+            threadValue = new WeakReference<>(t);
+        }
+        return t;
+    }
+
     /**
      * 恢复协程
-     * TODO 改线程实现
+     * 参数已经在协程的栈顶：首次运行时在主函数之上，否则作为 yield() 的返回值。
+     * 执行权交给协程的承载线程，直到协程挂起（LUA_YIELD）、结束（LUA_OK）或出错，返回值（或错误信息）留在协程的栈顶。
      *
      * @param from
      * @param nArgs
@@ -1456,35 +1841,141 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public ThreadStatus resume(LuaStateImpl from, int nArgs) {
-        // 如果 coChan 的值为 0，表示首次运行，需要启动一个协程执行主函数。
-        if (coChan.get() == 0) {
-            this.coCaller = from;
-            this.coStatus = pCall(nArgs, -1, 0);
-            from.coChan.set(1);
+        if (isMainThread()) {
+            throw new RuntimeException("cannot resume non-suspended coroutine");
+        }
+        this.coStatus = LUA_OK;
+        if (coroutine != null) {
+            coroutine.resume(nArgs);
         } else {
-            this.coStatus = LUA_OK;
-            this.coChan.set(1);
+            resumeContinuation(nArgs);
         }
         return coStatus;
     }
 
+    /**
+     * continuation 模式下恢复协程：
+     * 首次运行时直接调用主函数；否则先完成挂起时的 yield 调用（恢复时传入的参数作为其返回值），再继续执行调用帧链（见 {@link #unroll()}）。
+     * 再次挂起时 yield 抛出 {@link #YIELD}，调用帧链原样保留；
+     * 出错时如果调用帧链中有被中断的 pCallK，弹出它之上的调用帧，以出错状态完成它并继续执行（lua-5.3.4/src/ldo.c#recover），
+     * 否则弹出所有调用帧，错误信息留在栈顶。
+     *
+     * @param nArgs
+     */
+    private void resumeContinuation(int nArgs) {
+        LuaStack recovered = null;
+        for (;;) {
+            try {
+                if (recovered != null) {
+                    finishJava(recovered, LUA_ERRRUN);
+                } else if (stack.prev == null) {
+                    call(nArgs, -1);
+                } else {
+                    LuaStack yieldFrame = stack;
+                    returnFromJava(yieldFrame, yieldFrame.values.top - nArgs, nArgs);
+                }
+                unroll();
+                return;
+            } catch (RuntimeException e) {
+                if (e == YIELD) {
+                    return;
+                }
+                recovered = stack;
+                while (recovered.prev != null && recovered.k == null) {
+                    recovered = recovered.prev;
+                }
+                while (stack != recovered) {
+                    closeUpvalues(stack, 0);
+                    popLuaStack();
+                }
+                if (recovered.prev == null) {
+                    stack.setTop(0);
+                    pushString(e.getMessage());
+                    this.coStatus = LUA_ERRRUN;
+                    return;
+                }
+                stack.setTop(recovered.kTop);
+                pushString(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 继续执行恢复的调用帧链直到主函数返回（lua-5.3.4/src/ldo.c#unroll）：
+     * 栈顶是 Lua 帧时由解释器执行，直到由 Java 代码发起调用的帧返回；栈顶是被中断的 pCallK 所在的 Java 帧时由延续函数完成。
+     */
+    private void unroll() {
+        while (stack.prev != null) {
+            LuaStack frame = stack;
+            if (frame.closure.proto != null) {
+                Interpreter.execute(this, frame);
+            } else {
+                finishJava(frame, LUA_OK);
+            }
+        }
+    }
+
+    /**
+     * 以被调用函数的状态调用延续函数，完成被中断的 Java 帧
+     *
+     * @param frame
+     * @param status
+     */
+    private void finishJava(LuaStack frame, ThreadStatus status) {
+        KFunction k = frame.k;
+        frame.k = null;
+        int r = k.invoke(this, status);
+        returnFromJava(frame, frame.values.top - r, r);
+    }
+
+    /**
+     * 弹出已完成的 Java 帧，返回值复制到函数所在的位置；
+     * 由解释器调用时与 CALL 指令相同，需要固定数量的返回值则恢复主调用帧的栈顶。
+     *
+     * @param frame
+     * @param first
+     * @param n
+     */
+    private void returnFromJava(LuaStack frame, int first, int n) {
+        popLuaStack();
+        moveResults(first, n, frame.func, frame.nResults);
+        if (!frame.fresh && frame.nResults >= 0) {
+            LuaStack caller = stack;
+            caller.values.top = caller.base + (caller.closure.proto.getMaxStackSize() & 0xFF);
+        }
+    }
+
     /**
      * 挂起线程
-     * 通知协作方恢复运行，最后等待再一次恢复运行。
-     * TODO 改线程实现
+     * 栈顶的 nResults 个值交给恢复方，把执行权交还恢复方后等待再一次恢复运行，返回恢复时传入的参数数量。
      *
      * @param nResults
      * @return
      */
     @Override
     public int yield(int nResults) {
-        this.coStatus = LUA_YIELD;
-        this.coCaller.coChan.set(0);
-        while (coChan.get() != 1) {
-            // wait for other coroutine to wake up
-            ;
+        if (isMainThread()) {
+            throw new RuntimeException("attempt to yield from outside a coroutine");
+        }
+        if (coroutine != null) {
+            this.coStatus = LUA_YIELD;
+            coroutine.yield();
+            this.coStatus = LUA_OK;
+            return this.getTop();
+        }
+
+        // continuation 模式：其下直到主函数，Java 函数都在 pCallK 中（可以由延续函数完成），
+        // 由 Java 代码发起调用的帧都由 resume（主函数）或 pCallK 发起。
+        boolean crossJava = false;
+        for (LuaStack frame = stack; !crossJava && frame.prev != null; frame = frame.prev) {
+            crossJava = frame != stack && frame.closure.proto == null && frame.k == null
+                || frame.fresh && frame.prev.prev != null && frame.prev.k == null;
+        }
+        if (crossJava) {
+            throw new RuntimeException("attempt to yield across a Java-call boundary");
         }
-        return this.getTop();
+        this.coStatus = LUA_YIELD;
+        throw YIELD;
     }
 
     /**
@@ -1497,13 +1988,45 @@ public class LuaStateImpl implements LuaState, LuaVM {
         return this.coStatus;
     }
 
+    /**
+     * 关闭已结束的协程，把它的值栈归还值栈池。
+     * 关闭后栈中没有任何值，协程保持 dead 状态；挂起、运行中的协程和主线程不做处理。
+     */
+    @Override
+    public void closeThread() {
+        if (isMainThread() || coStatus == LUA_YIELD || stack.prev != null || stack == CLOSED) {
+            return;
+        }
+        ValueStack values = stack.values;
+        stack = CLOSED;
+        pool.release(values);
+    }
+
+    /**
+     * 新建线程时复用值栈池中值栈的次数
+     *
+     * @return
+     */
+    public long threadPoolHits() {
+        return pool.hits;
+    }
+
+    /**
+     * 新建线程时值栈池为空、分配新值栈的次数
+     *
+     * @return
+     */
+    public long threadPoolMisses() {
+        return pool.misses;
+    }
+
     /**
      *
      * @return
      */
     @Override
     public boolean isYieldAble() {
-        return false;
+        return !isMainThread();
     }
 
     /**
@@ -1515,6 +2038,9 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public LuaStateImpl toThread(int idx) {
         Object val = stack.get(idx);
+        if (val instanceof LuaThread) {
+            return ((LuaThread) val).state;
+        }
         if (val instanceof LuaState) {
             return (LuaStateImpl) val;
         }
@@ -1528,7 +2054,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public boolean pushThread() {
-        stack.push(this);
+        stack.push(threadValue());
         return isMainThread();
     }
 
@@ -1541,8 +2067,16 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public void xMove(LuaStateImpl to, int n) {
-        List<Object> vals = stack.popN(n);
-        to.stack.pushN(vals, n);
+        ValueStack src = stack.values;
+        ValueStack dst = to.stack.values;
+        int from = src.top - n;
+        if (from < stack.base) {
+            throw new RuntimeException("stack underflow!");
+        }
+        dst.ensure(dst.top + n);
+        src.copyTo(from, dst, dst.top, n);
+        dst.top += n;
+        src.setTop(from);
     }
 
     /**
@@ -1591,25 +2125,55 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public ThreadStatus pCall(int nArgs, int nResults, int msgh) {
         LuaStack caller = stack;
+        int oldTop = stack.top() - nArgs - 1;
         try {
             // 尝试正常调用函数
             call(nArgs, nResults);
             return LUA_OK;
         } catch (Exception e) {
 
-            // 存在指定的错误处理器
-            if (msgh != 0) {
+            // 挂起协程（见 pCallK）、存在指定的错误处理器
+            if (e == YIELD || msgh != 0) {
                 throw e;
             }
-//            while (stack == caller) {
-//                popLuaStack();
-//            }
-            // TODO
-            stack.push(e.getMessage());
+            // 弹出出错时尚未返回的调用帧，丢弃函数、参数及中间结果，再推入错误信息。
+            while (stack != caller) {
+                closeUpvalues(stack, 0);
+                popLuaStack();
+            }
+            stack.setTop(oldTop);
+            pushString(e.getMessage());
             return LUA_ERRRUN;
         }
     }
 
+    /**
+     * 可挂起的 pCall：当前 Java 帧记下延续函数和出错时的栈顶。
+     * 被调用函数挂起协程时 YIELD 穿过本方法，帧中的记录留给恢复时完成该 Java 帧（见 {@link #resumeContinuation}）。
+     *
+     * @param nArgs
+     * @param nResults
+     * @param msgh
+     * @param k
+     * @return
+     */
+    @Override
+    public ThreadStatus pCallK(int nArgs, int nResults, int msgh, KFunction k) {
+        LuaStack frame = stack;
+        frame.k = k;
+        frame.kTop = stack.top() - nArgs - 1;
+        try {
+            ThreadStatus status = pCall(nArgs, nResults, msgh);
+            frame.k = null;
+            return status;
+        } catch (RuntimeException e) {
+            if (e != YIELD) {
+                frame.k = null;
+            }
+            throw e;
+        }
+    }
+
     /**
      * 输出指定错误类型
      *
@@ -1724,6 +2288,15 @@ public class LuaStateImpl implements LuaState, LuaVM {
         return s;
     }
 
+    @Override
+    public LuaString checkLuaString(int arg) {
+        LuaString s = toLuaString(arg);
+        if (s == null) {
+            tagError(arg, LUA_TSTRING);
+        }
+        return s;
+    }
+
     @Override
     public long optInteger(int arg, long dft) {
         return isNoneOrNil(arg) ? dft : checkInteger(arg);
@@ -1792,7 +2365,7 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     @Override
     public ThreadStatus loadString(String s) {
-        return load(s.getBytes(), s, "bt");
+        return load(s.getBytes(StandardCharsets.UTF_8), s, "bt");
     }
 
     @Override
@@ -1821,11 +2394,11 @@ public class LuaStateImpl implements LuaState, LuaVM {
     @Override
     public String toStringX(int idx) {
         Object val = stack.get(idx);
-        if (val instanceof String) {
-            return (String) val;
+        if (val instanceof LuaString) {
+            return val.toString();
         } else if (val instanceof Long || val instanceof Double) {
             String s = String.valueOf(val);
-            stack.set(idx, s);
+            stack.set(idx, strings.intern(LuaString.valueOf(s)));
             return s;
         } else {
             return null;
@@ -2074,7 +2647,8 @@ public class LuaStateImpl implements LuaState, LuaVM {
      */
     public void loadInstructions(String fileName) throws IOException {
         byte[] chunk = Files.readAllBytes(Paths.get(fileName));
-        Prototype proto = isBinaryChunk(chunk) ? undump(chunk) : compile(new String(chunk), "@" + fileName);
+        Prototype proto = isBinaryChunk(chunk) ? undump(chunk) : compile(new String(chunk, StandardCharsets.UTF_8), "@" + fileName);
+        strings.internConstants(proto);
         this.stack.closure = new Closure(proto);
 
         Closure closure = new Closure(proto);
@@ -1,78 +1,233 @@
 package com.ywh.jua.state;
 
 
+import com.ywh.jua.api.LuaString;
 import com.ywh.jua.number.LuaNumber;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static com.ywh.jua.state.LuaStack.*;
 
 
 
 /**
  * Lua 表
- * 采用混合数据结构，同时包含数组和哈希表两部分。
- * 如果表的键是连续的正整数，则哈希表为空，值全部存储在数组中；
- * 如果表没有被当作数组使用，则数据完全存储在哈希表中。
+ * 采用混合数据结构，同时包含数组和哈希表两部分（lua-5.3.4/src/ltable.c）。
+ * 数组部分存放键 1 ~ n 的值，nil 即空槽位；其他键存放在哈希部分。
+ *
+ * 哈希部分是开放寻址（线性探测）的节点数组，键和值分别存放在 nodeKeys、nodeVals 的同一下标处，不为每个键值对分配节点对象。
+ * 把值设为 nil 时只清空值，键留在原处作为墓碑（与 Lua 的“死键”相同），探测链不会断开，遍历中途清空字段也不影响 next。
+ *
+ * 数组部分的值全部是整数（或全部是浮点数）且连续存放在开头时，以拆箱的 long[] 存放（浮点数存放位模式，与寄存器相同），
+ * 不为每个元素分配 Long、Double；第一次存入其他类型的值或造成“洞”时转换为 Object[]，重新哈希时再重新选择。
+ *
+ * 哈希部分容量不超过 SMALL_NODES 时（大多数只有几个字段的“记录”）不计算散列值，键按插入顺序存放在开头，
+ * 取值时线性扫描、先比较引用；容量恰好是需要的大小（2 的幂），不预留装载因子的空闲槽位。
+ *
+ * 新建的表处于形状模式：哈希部分的键由共享的 {@link Shape} 记录（nodeKeys 即形状的键数组，不可修改），
+ * 表只有自己的值数组 nodeVals；加入新的字符串键时转换到下一个形状，清除字段只把值置为 nil，键仍然保留在形状中。
+ * 加入其他类型的键、或者形状不能再转换时，通过一次重新哈希退回字典模式（以下的线性扫描或散列存放）。
+ *
+ * 哈希部分没有空闲槽位时插入新键会触发重新哈希（rehash）：统计所有整数键（包括新键）的分布，
+ * 选出使用率超过一半的最大的 2 的幂作为数组部分的大小，其余的键按数量分配哈希部分，墓碑在此时清除。
  *
  * @author ywh
  * @since 2020/8/19 11:26
  */
 class LuaTable {
 
+    private static final Object[] EMPTY = {};
+
+    /**
+     * 数组部分的最大大小（2 的幂的位数）
+     */
+    private static final int MAX_ABITS = 26;
+
+    /**
+     * 线性扫描的哈希部分的最大容量，超过时按散列值存放
+     */
+    private static final int SMALL_NODES = 8;
+
     /**
      * 元表，存放类型关联函数。
      */
     LuaTable metatable;
 
     /**
-     * 数组
+     * 最多单独记录的依赖键数，超过时任何字符串键的写入都递增版本（例如以字符串为键的大字典作为 __index）
      */
-    private List<Object> arr;
+    private static final int MAX_WATCHED_KEYS = 64;
 
     /**
-     * 哈希表
+     * 是否在某个 IndexCache 记录的 __index 链上（写入依赖的键或更换元表时需要递增版本）
      */
-    private Map<Object, Object> map;
+    boolean watched;
 
-    // ========== 迭代器 next 函数 ==========
+    /**
+     * 版本：watched 的表写入依赖的键或更换元表时递增，IndexCache 据此判断链上的这张表是否变化
+     */
+    int version;
+
+    /**
+     * 链上的查找依赖的键（在这张表中查找过的键、作为元表时的 __index）；
+     * 只有写入这些键才递增版本，写入其他字段（例如类表上的计数器）不影响经过这张表的缓存。为 null 时任何字符串键都算。
+     */
+    private HashSet<LuaString> watchedKeys;
+
+    /**
+     * 作为元表时 __index 链的查找缓存
+     */
+    IndexCache indexCache;
+
+    /**
+     * 数组部分的存放方式：TAG_REF 为 array，TAG_INTEGER、TAG_FLOAT 为 nums
+     */
+    private byte arrayTag;
+
+    /**
+     * 数组部分：array[i] 是键 i + 1 的值
+     */
+    private Object[] array;
 
     /**
-     * 键表，存放表的键与下一个键的关系。
+     * 拆箱的数组部分：nums[i] 是键 i + 1 的值（整数或浮点数的位模式），只有前 numsLen 个有值，其余为 nil
      */
-    private Map<Object, Object> keys;
+    private long[] nums;
 
-    private Object lastKey;
+    private int numsLen;
+
+    /**
+     * 哈希部分的键，长度为 0 或 2 的幂，null 表示从未使用的槽位。
+     */
+    private Object[] nodeKeys;
+
+    /**
+     * 哈希部分的值，null 且键不为空表示墓碑。
+     */
+    private Object[] nodeVals;
+
+    /**
+     * 哈希部分已占用的槽位（包括墓碑）
+     */
+    private int nodeUsed;
+
+    /**
+     * 形状，字典模式下为 null
+     */
+    private Shape shape;
 
-    private boolean changed;
+    /**
+     * 作为元表时已知不存在的元方法（按 TagMethod 的序数记录的位），写入以 "__" 开头的键时清零
+     */
+    private int absentFlags;
 
     LuaTable(int nArr, int nRec) {
+        // 预分配的数组部分为空，先按整数存放，第一个元素决定其类型（见 putArray）。
         if (nArr > 0) {
-            arr = new ArrayList<>(nArr);
+            arrayTag = TAG_INTEGER;
+            array = EMPTY;
+            nums = new long[nArr];
+        } else {
+            array = EMPTY;
         }
-        if (nRec > 0) {
-            map = new HashMap<>(nRec);
+        if (nRec <= Shape.MAX_KEYS) {
+            shape = Shape.ROOT;
+            nodeKeys = shape.keys;
+            nodeVals = nRec > 0 ? new Object[nRec] : EMPTY;
+        } else {
+            initNodes(nRec);
         }
     }
 
     /**
-     * 是否具备元字段（方法）
+     * 是否具备元方法
      *
-     * @param fieldName
+     * @param tm
      * @return
      */
-    boolean hasMetafield(String fieldName) {
-        return metatable != null && metatable.get(fieldName) != null;
+    boolean hasMetafield(TagMethod tm) {
+        return metatable != null && metatable.metamethod(tm) != null;
+    }
+
+    /**
+     * 作为元表时取元方法：已知不存在的事件只需一次位运算（lua-5.3.4/src/ltm.h#fasttm()）
+     *
+     * @param tm
+     * @return
+     */
+    Object metamethod(TagMethod tm) {
+        int bit = 1 << tm.ordinal();
+        if ((absentFlags & bit) != 0) {
+            return null;
+        }
+        Object mm = get(tm.event);
+        if (mm == null) {
+            absentFlags |= bit;
+        }
+        return mm;
     }
 
     /**
-     * 数组长度
+     * 长度：返回任意一个边界（border），即 t[n] 不为 nil 而 t[n + 1] 为 nil 的 n（lua-5.3.4/src/ltable.c#luaH_getn()）。
+     * 数组部分末尾为 nil 时在数组中二分查找；否则数组已满，哈希部分非空时继续向后查找。
      *
      * @return
      */
     int length() {
-        return arr == null ? 0 : arr.size();
+        int j = arraySize();
+        if (arrayTag != TAG_REF) {
+            if (numsLen < j) {
+                return numsLen;
+            }
+        } else if (j > 0 && array[j - 1] == null) {
+            int i = 0;
+            while (j - i > 1) {
+                int m = (i + j) >>> 1;
+                if (array[m - 1] == null) {
+                    j = m;
+                } else {
+                    i = m;
+                }
+            }
+            return i;
+        }
+        if (nodeUsed == 0) {
+            return j;
+        }
+        return unboundSearch(j);
+    }
+
+    /**
+     * 在哈希部分中查找边界：先倍增找到一个值为 nil 的键，再二分。
+     *
+     * @param j
+     * @return
+     */
+    private int unboundSearch(int j) {
+        long i = j;
+        long k = j + 1L;
+        while (getNode(k) != null) {
+            i = k;
+            if (k > Integer.MAX_VALUE / 2) {
+                // 溢出：线性查找
+                int n = 1;
+                while (getNode((long) n) != null) {
+                    n++;
+                }
+                return n - 1;
+            }
+            k <<= 1;
+        }
+        while (k - i > 1) {
+            long m = (i + k) >>> 1;
+            if (getNode(m) == null) {
+                k = m;
+            } else {
+                i = m;
+            }
+        }
+        return (int) i;
     }
 
     /**
@@ -82,15 +237,28 @@ class LuaTable {
      * @return
      */
     Object get(Object key) {
-        // 如果数组非空，且 key 可以转换为 Long 类型，则按数组的方式访问；否则按哈希表的方式访问。
-        key = floatToInteger(key);
-        if (arr != null && key instanceof Long) {
-            int idx = ((Long) key).intValue();
-            if (idx >= 1 && idx <= arr.size()) {
-                return arr.get(idx - 1);
+        // 如果 key 可以转换为 Long 类型且在数组范围内，则按数组的方式访问；否则按哈希表的方式访问。
+        key = normalizeKey(key);
+        if (key instanceof Long) {
+            long idx = (Long) key;
+            if (idx >= 1 && idx <= arraySize()) {
+                return arrayGet((int) idx - 1);
             }
         }
-        return map != null ? map.get(key) : null;
+        return getNode(key);
+    }
+
+    /**
+     * 按整数键取值，不装箱（键在数组范围之外时才装箱查找哈希部分）
+     *
+     * @param key
+     * @return
+     */
+    Object get(long key) {
+        if (key >= 1 && key <= arraySize()) {
+            return arrayGet((int) key - 1);
+        }
+        return nodeKeys.length == 0 ? null : getNode(key);
     }
 
     /**
@@ -107,62 +275,244 @@ class LuaTable {
         if (key instanceof Double && ((Double) key).isNaN()) {
             throw new RuntimeException("table index is NaN!");
         }
-        // 如果键可以转换为 Long 类型，且下标 >= 1，则按数组处理
-        key = floatToInteger(key);
-        if (key instanceof Long) {
-            int idx = ((Long) key).intValue();
-            if (idx >= 1) {
-                if (arr == null) {
-                    arr = new ArrayList<>();
-                }
-                int arrLen = arr.size();
-
-                // 如果访问的下标在数组长度范围内，则设值
-                if (idx <= arrLen) {
-                    arr.set(idx - 1, val);
-                    // 如果向数组放入 nil 值，则会造成“洞”；如果“洞”在数组末尾，则把末尾的“洞”全部删除
-                    if (idx == arrLen && val == null) {
-                        shrinkArray();
-                    }
+        key = normalizeKey(key);
+        if (absentFlags != 0 && key instanceof LuaString && isMetaName((LuaString) key)) {
+            absentFlags = 0;
+        }
+        if (watched) {
+            changed(key);
+        }
+        for (;;) {
+            // 下标在数组范围内：直接设值（nil 即空槽位）
+            if (key instanceof Long) {
+                long idx = (Long) key;
+                if (idx >= 1 && idx <= arraySize()) {
+                    putArray((int) idx - 1, val);
                     return;
                 }
-
-                // 如果访问的下标刚超出数组范围，则删除哈希表中的值（如果存在），并扩充数组
-                if (idx == arrLen + 1) {
-                    if (map != null) {
-                        map.remove(key);
-                    }
-                    if (val != null) {
-                        arr.add(val);
-                        if (map != null) {
-                            expandArray();
-                        }
-
-                    }
+            }
+            if (shape != null) {
+                if (putShaped(key, val)) {
                     return;
                 }
+                // 退回字典模式：重新哈希按现有的键（形状的键数组）分配新的哈希部分
+                shape = null;
+                rehash(key);
+                continue;
+            }
+            // 键已在哈希部分：设值（nil 即墓碑）；新键的值为 nil 时不必插入。
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                nodeVals[slot] = val;
+                return;
             }
+            if (val == null) {
+                return;
+            }
+            // 新键：放入探测路径上的第一个墓碑或空槽位；没有空闲槽位时重新哈希，数组部分可能因此容纳该键。
+            slot = -slot - 1;
+            if (slot < nodeKeys.length && (nodeKeys[slot] != null || nodeUsed < maxUsed(nodeKeys.length))) {
+                if (nodeKeys[slot] == null) {
+                    nodeUsed++;
+                }
+                nodeKeys[slot] = key;
+                nodeVals[slot] = val;
+                return;
+            }
+            rehash(key);
         }
-        // 如果键不能转换为 Long 类型，且值不为空，则加入到哈希表。
-        if (val != null) {
-            if (map == null) {
-                map = new HashMap<>();
+    }
+
+    /**
+     * 键在拆箱的数组部分中时返回值的类型（TAG_INTEGER 或 TAG_FLOAT），否则返回 TAG_REF，
+     * 解释器据此用 {@link #numAt(long)} 直接读取拆箱的值。
+     *
+     * @param key
+     * @return
+     */
+    byte numTag(long key) {
+        return key >= 1 && key <= numsLen ? arrayTag : TAG_REF;
+    }
+
+    /**
+     * 拆箱的数组部分中键的值（整数或浮点数的位模式），调用方保证 numTag(key) 不为 TAG_REF
+     *
+     * @param key
+     * @return
+     */
+    long numAt(long key) {
+        return nums[(int) key - 1];
+    }
+
+    /**
+     * 按整数键存入数字（整数或浮点数的位模式），不装箱。
+     * 键不在数组部分时装箱后按一般规则存入。
+     *
+     * @param key
+     * @param tag
+     * @param bits
+     */
+    void putNum(long key, byte tag, long bits) {
+        if (key >= 1 && key <= arraySize()) {
+            int i = (int) key - 1;
+            if (arrayTag == TAG_REF) {
+                array[i] = box(tag, bits);
+            } else {
+                putNum(i, tag, bits);
             }
-            map.put(key, val);
-        } else {
-            if (map != null) {
-                map.remove(key);
+            return;
+        }
+        put(key, box(tag, bits));
+    }
+
+    // ========== 数组部分 ==========
+
+    /**
+     * 数组部分的大小
+     *
+     * @return
+     */
+    private int arraySize() {
+        return arrayTag == TAG_REF ? array.length : nums.length;
+    }
+
+    /**
+     * 取数组部分下标 i 的值
+     *
+     * @param i
+     * @return
+     */
+    private Object arrayGet(int i) {
+        if (arrayTag == TAG_REF) {
+            return array[i];
+        }
+        return i < numsLen ? box(arrayTag, nums[i]) : null;
+    }
+
+    /**
+     * 数组部分下标 i 的值是否不为 nil
+     *
+     * @param i
+     * @return
+     */
+    private boolean arrayHas(int i) {
+        return arrayTag == TAG_REF ? array[i] != null : i < numsLen;
+    }
+
+    /**
+     * 设置数组部分下标 i 的值
+     *
+     * @param i
+     * @param val
+     */
+    private void putArray(int i, Object val) {
+        if (arrayTag == TAG_REF) {
+            array[i] = val;
+        } else if (val instanceof Long) {
+            putNum(i, TAG_INTEGER, (Long) val);
+        } else if (val instanceof Double) {
+            putNum(i, TAG_FLOAT, Double.doubleToRawLongBits((Double) val));
+        } else if (val == null) {
+            // 清除末尾的值仍然连续；清除中间的值会造成“洞”
+            if (i == numsLen - 1) {
+                numsLen--;
+            } else if (i < numsLen) {
+                toObjectArray();
+                array[i] = null;
             }
+        } else {
+            toObjectArray();
+            array[i] = val;
+        }
+    }
+
+    /**
+     * 在拆箱的数组部分设置下标 i 的数字：数组为空时采用该数字的类型；类型不同或造成“洞”时转换为 Object[]。
+     *
+     * @param i
+     * @param tag
+     * @param bits
+     */
+    private void putNum(int i, byte tag, long bits) {
+        if (numsLen == 0) {
+            arrayTag = tag;
+        }
+        if (tag != arrayTag || i > numsLen) {
+            toObjectArray();
+            array[i] = box(tag, bits);
+            return;
+        }
+        nums[i] = bits;
+        if (i == numsLen) {
+            numsLen++;
         }
     }
 
     /**
-     * Float 转换成 Integer
+     * 拆箱的数组部分转换为 Object[]
+     */
+    private void toObjectArray() {
+        Object[] arr = new Object[nums.length];
+        for (int i = 0; i < numsLen; i++) {
+            arr[i] = box(arrayTag, nums[i]);
+        }
+        array = arr;
+        arrayTag = TAG_REF;
+        nums = null;
+        numsLen = 0;
+    }
+
+    /**
+     * 装箱
+     *
+     * @param tag
+     * @param bits
+     * @return
+     */
+    private static Object box(byte tag, long bits) {
+        return tag == TAG_INTEGER ? (Object) bits : (Object) Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * 值的数字类型：TAG_INTEGER、TAG_FLOAT，其他为 TAG_REF
+     *
+     * @param val
+     * @return
+     */
+    private static byte tagOf(Object val) {
+        return val instanceof Long ? TAG_INTEGER : val instanceof Double ? TAG_FLOAT : TAG_REF;
+    }
+
+    /**
+     * 值的拆箱表示
+     *
+     * @param val
+     * @return
+     */
+    private static long bitsOf(Object val) {
+        return val instanceof Long ? (Long) val : Double.doubleToRawLongBits((Double) val);
+    }
+
+    /**
+     * 是否以 "__" 开头（元方法的字段名）
      *
      * @param key
      * @return
      */
-    private Object floatToInteger(Object key) {
+    private static boolean isMetaName(LuaString key) {
+        return key.length() >= 2 && key.byteAt(0) == '_' && key.byteAt(1) == '_';
+    }
+
+    /**
+     * 键的规范形式：可以转换为整数的 Float 转换成 Integer，绳索展开成字符串
+     *
+     * @param key
+     * @return
+     */
+    private Object normalizeKey(Object key) {
+        if (key instanceof Rope) {
+            return ((Rope) key).flat();
+        }
         if (key instanceof Double) {
             Double f = (Double) key;
             if (LuaNumber.isInteger(f)) {
@@ -172,87 +522,587 @@ class LuaTable {
         return key;
     }
 
+    // ========== 内联缓存（见 FieldCache）==========
+
     /**
-     * 数组缩容（清理“洞”）
+     * 哈希部分的布局：键数组，形状模式下是形状共享的键数组
+     *
+     * @return
      */
-    private void shrinkArray() {
-        for (int i = arr.size() - 1; i >= 0; i--) {
-            if (arr.get(i) == null) {
-                arr.remove(i);
-            }
+    Object[] layout() {
+        return nodeKeys;
+    }
+
+    /**
+     * 形状模式下形状的键数组（可以作为形状的标识），字典模式下为 null
+     *
+     * @return
+     */
+    Object[] shapeKeys() {
+        return shape != null ? nodeKeys : null;
+    }
+
+    /**
+     * 键在哈希部分中的槽位，不存在时返回 -1
+     *
+     * @param key
+     * @return
+     */
+    int slotOf(Object key) {
+        int slot = findSlot(key);
+        return slot >= 0 ? slot : -1;
+    }
+
+    /**
+     * 哈希部分槽位上的值
+     *
+     * @param slot
+     * @return
+     */
+    Object slotValue(int slot) {
+        return nodeVals[slot];
+    }
+
+    /**
+     * 设置哈希部分槽位上的值（槽位上的键已经存在）
+     *
+     * @param slot
+     * @param val
+     */
+    void setSlotValue(int slot, Object val) {
+        if (watched) {
+            changed(nodeKeys[slot]);
         }
+        nodeVals[slot] = val;
     }
 
     /**
-     * 数组扩容
+     * 标记为 watched，并记录链上的查找依赖这张表中的键 key
+     *
+     * @param key
      */
-    private void expandArray() {
-        for (int idx = arr.size() + 1; ; idx++) {
-            Object val = map.remove((long) idx);
-            if (val != null) {
-                arr.add(val);
+    void watch(LuaString key) {
+        if (!watched) {
+            watched = true;
+            watchedKeys = new HashSet<>();
+        }
+        if (watchedKeys != null && !watchedKeys.contains(key)) {
+            if (watchedKeys.size() >= MAX_WATCHED_KEYS) {
+                watchedKeys = null;
             } else {
-                break;
+                watchedKeys.add(key);
             }
         }
     }
 
     /**
-     * 取下一个键
+     * watched 的表写入键 key：键是查找依赖的键时递增版本（整数等其他类型的键不影响字符串键的查找）
+     *
+     * @param key
+     */
+    private void changed(Object key) {
+        if (key instanceof LuaString && (watchedKeys == null || watchedKeys.contains(key))) {
+            version++;
+        }
+    }
+
+    // ========== 形状模式 ==========
+
+    /**
+     * 形状模式下设值：键已在形状中时直接设值，新的字符串键转换到下一个形状；
+     * 其他类型的新键或者形状不能再转换时返回 false。
+     *
+     * @param key
+     * @param val
+     * @return
+     */
+    private boolean putShaped(Object key, Object val) {
+        int i = shape.indexOf(key);
+        if (i >= 0) {
+            nodeVals[i] = val;
+            return true;
+        }
+        if (val == null) {
+            return true;
+        }
+        Shape next = key instanceof LuaString ? shape.add((LuaString) key) : null;
+        if (next == null) {
+            return false;
+        }
+        int n = shape.size();
+        if (n == nodeVals.length) {
+            nodeVals = Arrays.copyOf(nodeVals, Math.min(Math.max(n << 1, 4), Shape.MAX_KEYS));
+        }
+        nodeVals[n] = val;
+        shape = next;
+        nodeKeys = next.keys;
+        nodeUsed = n + 1;
+        return true;
+    }
+
+    // ========== 哈希部分 ==========
+
+    /**
+     * 键的散列值：打散低位，使连续的整数键、哈希值集中在高位的键都能分布到各个槽位。
      *
      * @param key
      * @return
      */
-    Object nextKey(Object key) {
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
 
-        // 如果传入 nil，表示遍历开始，需要先把所有的键收集到 keys 中。
-        if (keys == null || (key == null && changed)) {
-            initKeys();
-            changed = false;
+    /**
+     * 哈希部分容量对应的最大占用数：线性扫描时可以占满；否则装载因子 3/4，至少留一个空槽位，保证线性探测总能结束。
+     *
+     * @param capacity
+     * @return
+     */
+    private static int maxUsed(int capacity) {
+        return capacity <= SMALL_NODES ? capacity : capacity - (capacity >>> 2);
+    }
+
+    /**
+     * 按容纳 n 个键分配哈希部分
+     *
+     * @param n
+     */
+    private void initNodes(int n) {
+        if (n <= 0) {
+            nodeKeys = EMPTY;
+            nodeVals = EMPTY;
+        } else {
+            int capacity = 1;
+            while (maxUsed(capacity) < n) {
+                capacity <<= 1;
+            }
+            nodeKeys = new Object[capacity];
+            nodeVals = new Object[capacity];
         }
+        nodeUsed = 0;
+    }
 
-        Object nextKey = keys.get(key);
-        // 如果下一个键为空，且当前键为空，且当前键不是最后一个键，则访问错误。
-        if (nextKey == null && key != null && key != lastKey) {
-            throw new RuntimeException("invalid key to 'next'");
+    /**
+     * 在哈希部分中取值
+     *
+     * @param key
+     * @return
+     */
+    private Object getNode(Object key) {
+        if (shape != null) {
+            int i = shape.indexOf(key);
+            return i >= 0 ? nodeVals[i] : null;
+        }
+        Object[] ks = nodeKeys;
+        if (ks.length <= SMALL_NODES) {
+            for (int i = 0, n = nodeUsed; i < n; i++) {
+                Object k = ks[i];
+                if (k == key || k.equals(key)) {
+                    return nodeVals[i];
+                }
+            }
+            return null;
+        }
+        int mask = ks.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object k = ks[i];
+            if (k == null) {
+                return null;
+            }
+            if (k == key || k.equals(key)) {
+                return nodeVals[i];
+            }
         }
+    }
 
-        return nextKey;
+    /**
+     * 在哈希部分中查找键：找到时返回槽位；否则返回 -(可插入槽位 + 1)，可插入槽位是探测路径上的第一个墓碑或最后的空槽位。
+     * 线性扫描时可插入槽位是第一个墓碑或已用槽位之后的槽位，已满时等于容量；哈希部分为空时返回 -1。
+     * 形状模式下只用于定位已有的键（不存在时返回 -1）。
+     *
+     * @param key
+     * @return
+     */
+    private int findSlot(Object key) {
+        if (shape != null) {
+            int i = shape.indexOf(key);
+            return i >= 0 ? i : -1;
+        }
+        Object[] ks = nodeKeys;
+        int free = -1;
+        if (ks.length <= SMALL_NODES) {
+            int n = nodeUsed;
+            for (int i = 0; i < n; i++) {
+                Object k = ks[i];
+                if (k == key || k.equals(key)) {
+                    return i;
+                }
+                if (free < 0 && nodeVals[i] == null) {
+                    free = i;
+                }
+            }
+            return -(free >= 0 ? free : n) - 1;
+        }
+        int mask = ks.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            Object k = ks[i];
+            if (k == null) {
+                return -(free >= 0 ? free : i) - 1;
+            }
+            if (k == key || k.equals(key)) {
+                return i;
+            }
+            if (free < 0 && nodeVals[i] == null) {
+                free = i;
+            }
+        }
     }
 
     /**
-     * keys 初始化，把数组或哈希表所有的键收集到 keys 中。
+     * 直接放入哈希部分（重新哈希时使用，调用方保证键不存在且有空槽位）
+     *
+     * @param key
+     * @param val
      */
-    private void initKeys() {
-        if (keys == null) {
-            keys = new HashMap<>();
-        } else {
-            keys.clear();
+    private void insertNode(Object key, Object val) {
+        if (nodeKeys.length <= SMALL_NODES) {
+            nodeKeys[nodeUsed] = key;
+            nodeVals[nodeUsed++] = val;
+            return;
+        }
+        int mask = nodeKeys.length - 1;
+        int i = hash(key) & mask;
+        while (nodeKeys[i] != null) {
+            i = (i + 1) & mask;
+        }
+        nodeKeys[i] = key;
+        nodeVals[i] = val;
+        nodeUsed++;
+    }
+
+    // ========== 重新哈希（lua-5.3.4/src/ltable.c#rehash()）==========
+
+    /**
+     * 重新计算数组部分和哈希部分的大小，并把所有键值对放到新的位置。
+     *
+     * @param extraKey 即将插入的新键
+     */
+    private void rehash(Object extraKey) {
+        // nums[i]：键在 (2^(i-1), 2^i] 范围内的整数键数量
+        int[] nums = new int[MAX_ABITS + 1];
+        int arrayKeys = numUseArray(nums);
+        int total = arrayKeys;
+        int[] hashCounts = numUseHash(nums);
+        arrayKeys += hashCounts[1];
+        total += hashCounts[0];
+        if (countInt(extraKey, nums)) {
+            arrayKeys++;
         }
-        Object key = null;
+        total++;
+
+        // na：计算得到的数组部分大小中实际落入数组的键数量
+        int[] na = {arrayKeys};
+        int newArraySize = computeSizes(nums, na);
+        resize(newArraySize, total - na[0]);
+    }
 
-        // 数组
-        if (arr != null) {
-            for (int i = 0; i < arr.size(); i++) {
-                if (arr.get(i) != null) {
-                    long nextKey = i + 1;
-                    keys.put(key, nextKey);
-                    key = nextKey;
+    /**
+     * 统计数组部分中的键
+     *
+     * @param nums
+     * @return
+     */
+    private int numUseArray(int[] nums) {
+        int ause = 0;
+        int i = 1;
+        for (int lg = 0, ttlg = 1; lg <= MAX_ABITS; lg++, ttlg <<= 1) {
+            int lc = 0;
+            int lim = Math.min(ttlg, arraySize());
+            if (i > lim) {
+                break;
+            }
+            for (; i <= lim; i++) {
+                if (arrayHas(i - 1)) {
+                    lc++;
                 }
             }
+            nums[lg] += lc;
+            ause += lc;
         }
+        return ause;
+    }
 
-        // 哈希表
-        if (map != null) {
-            for (Object k : map.keySet()) {
-                Object v = map.get(k);
-                if (v != null) {
-                    keys.put(key, k);
-                    key = k;
+    /**
+     * 统计哈希部分中的键：返回 {键总数, 其中的正整数键数}
+     *
+     * @param nums
+     * @return
+     */
+    private int[] numUseHash(int[] nums) {
+        int total = 0;
+        int ause = 0;
+        for (int i = 0; i < nodeKeys.length; i++) {
+            if (nodeVals[i] != null) {
+                if (countInt(nodeKeys[i], nums)) {
+                    ause++;
                 }
+                total++;
             }
         }
-        // 设置最后一个 key。
-        lastKey = key;
+        return new int[]{total, ause};
     }
+
+    /**
+     * 键是可以放入数组部分的正整数时计入 nums
+     *
+     * @param key
+     * @param nums
+     * @return
+     */
+    private static boolean countInt(Object key, int[] nums) {
+        if (key instanceof Long) {
+            long k = (Long) key;
+            if (k >= 1 && k <= 1L << MAX_ABITS) {
+                nums[ceilLog2(k)]++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * ⌈log2(x)⌉
+     *
+     * @param x
+     * @return
+     */
+    private static int ceilLog2(long x) {
+        return 64 - Long.numberOfLeadingZeros(x - 1);
+    }
+
+    /**
+     * 选出数组部分的最优大小：满足 1 ~ n 中超过一半的键被使用的最大的 2 的幂 n。
+     * na[0] 传入整数键总数，返回时为落入数组部分的键数量。
+     *
+     * @param nums
+     * @param na
+     * @return
+     */
+    private static int computeSizes(int[] nums, int[] na) {
+        int a = 0;
+        int nA = 0;
+        int optimal = 0;
+        for (int i = 0, twotoi = 1; i <= MAX_ABITS && twotoi > 0 && na[0] > twotoi / 2; i++, twotoi <<= 1) {
+            if (nums[i] > 0) {
+                a += nums[i];
+                if (a > twotoi / 2) {
+                    optimal = twotoi;
+                    nA = a;
+                }
+            }
+        }
+        na[0] = nA;
+        return optimal;
+    }
+
+    /**
+     * 按新的大小重新分配数组部分和哈希部分，墓碑被丢弃。
+     *
+     * @param newArraySize
+     * @param hashSize
+     */
+    private void resize(int newArraySize, int hashSize) {
+        Object[] oldKeys = nodeKeys;
+        Object[] oldVals = nodeVals;
+        initNodes(hashSize);
+
+        // 数组缩小：超出部分移入哈希部分
+        if (arrayTag == TAG_REF) {
+            Object[] oldArray = array;
+            array = newArraySize == oldArray.length ? oldArray
+                : newArraySize == 0 ? EMPTY : Arrays.copyOf(oldArray, newArraySize);
+            for (int i = newArraySize; i < oldArray.length; i++) {
+                if (oldArray[i] != null) {
+                    insertNode((long) i + 1, oldArray[i]);
+                }
+            }
+        } else if (newArraySize == 0) {
+            for (int i = 0; i < numsLen; i++) {
+                insertNode((long) i + 1, box(arrayTag, nums[i]));
+            }
+            arrayTag = TAG_REF;
+            nums = null;
+            numsLen = 0;
+        } else {
+            for (int i = newArraySize; i < numsLen; i++) {
+                insertNode((long) i + 1, box(arrayTag, nums[i]));
+            }
+            numsLen = Math.min(numsLen, newArraySize);
+            nums = newArraySize == nums.length ? nums : Arrays.copyOf(nums, newArraySize);
+        }
+        // 哈希部分的键重新放入数组或哈希部分
+        for (int i = 0; i < oldKeys.length; i++) {
+            Object val = oldVals[i];
+            if (val != null) {
+                Object key = oldKeys[i];
+                long idx = key instanceof Long ? (Long) key : 0;
+                if (idx >= 1 && idx <= newArraySize) {
+                    putArray((int) idx - 1, val);
+                } else {
+                    insertNode(key, val);
+                }
+            }
+        }
+        // 哈希部分的键按任意顺序放入，中途可能转换为 Object[]，最后重新选择存放方式
+        if (arrayTag == TAG_REF) {
+            toNumArray();
+        }
+    }
+
+    /**
+     * 数组部分的值是同一种数字且连续存放在开头时转换为拆箱的 long[]
+     */
+    private void toNumArray() {
+        Object[] arr = array;
+        if (arr.length == 0) {
+            return;
+        }
+        byte tag = arr[0] == null ? TAG_INTEGER : tagOf(arr[0]);
+        if (tag == TAG_REF) {
+            return;
+        }
+        int n = 0;
+        while (n < arr.length && arr[n] != null && tagOf(arr[n]) == tag) {
+            n++;
+        }
+        for (int i = n; i < arr.length; i++) {
+            if (arr[i] != null) {
+                return;
+            }
+        }
+        long[] ns = new long[arr.length];
+        for (int i = 0; i < n; i++) {
+            ns[i] = bitsOf(arr[i]);
+        }
+        arrayTag = tag;
+        array = EMPTY;
+        nums = ns;
+        numsLen = n;
+    }
+
+    // ========== 迭代器 next 函数 ==========
+
+    // 遍历位置：0 ~ arraySize() - 1 对应数组部分，arraySize() + i 对应哈希部分的槽位 i。
+    // 由键可以直接定位到它的位置（数组下标或一次哈希查找），因此每一步都是 O(1) 且不分配任何辅助结构；
+    // 遍历过程中给已有字段赋值（包括赋 nil）不会移动任何键，与 Lua 的规则一致。
+
+    /**
+     * 取键之后下一个值不为 nil 的遍历位置，key 为 nil 时从头开始，遍历结束时返回 -1。
+     *
+     * @param key
+     * @return
+     */
+    int next(Object key) {
+        int n = arraySize();
+        int start = indexOf(key) + 1;
+        for (int i = start; i < n; i++) {
+            if (arrayHas(i)) {
+                return i;
+            }
+        }
+        return nextNode(Math.max(start - n, 0));
+    }
+
+    /**
+     * 从哈希部分的槽位 i 开始，下一个值不为 nil 的遍历位置
+     *
+     * @param i
+     * @return
+     */
+    private int nextNode(int i) {
+        Object[] vals = nodeVals;
+        for (; i < vals.length; i++) {
+            if (vals[i] != null) {
+                return arraySize() + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 整数键之后下一个值不为 nil 的遍历位置，键在数组范围内时不装箱。
+     *
+     * @param key
+     * @return
+     */
+    int next(long key) {
+        int n = arraySize();
+        if (key >= 1 && key <= n) {
+            for (int i = (int) key; i < n; i++) {
+                if (arrayHas(i)) {
+                    return i;
+                }
+            }
+            return nextNode(0);
+        }
+        return next((Object) key);
+    }
+
+    /**
+     * 遍历位置是否在数组部分（键为 idx + 1）
+     *
+     * @param idx
+     * @return
+     */
+    boolean inArray(int idx) {
+        return idx < arraySize();
+    }
+
+    /**
+     * 遍历位置上的键
+     *
+     * @param idx
+     * @return
+     */
+    Object keyAt(int idx) {
+        int n = arraySize();
+        return idx < n ? (Object) (idx + 1L) : nodeKeys[idx - n];
+    }
+
+    /**
+     * 遍历位置上的值
+     *
+     * @param idx
+     * @return
+     */
+    Object valueAt(int idx) {
+        int n = arraySize();
+        return idx < n ? arrayGet(idx) : nodeVals[idx - n];
+    }
+
+    /**
+     * 键的遍历位置，nil 为 -1；键不在表中（也不是墓碑）时访问错误。
+     *
+     * @param key
+     * @return
+     */
+    private int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        key = normalizeKey(key);
+        if (key instanceof Long) {
+            long idx = (Long) key;
+            if (idx >= 1 && idx <= arraySize()) {
+                return (int) idx - 1;
+            }
+        }
+        int slot = findSlot(key);
+        if (slot < 0) {
+            throw new RuntimeException("invalid key to 'next'");
+        }
+        return arraySize() + slot;
+    }
+
 }
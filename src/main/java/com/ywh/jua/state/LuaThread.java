@@ -0,0 +1,30 @@
+package com.ywh.jua.state;
+
+/**
+ * Lua 中协程的线程值：寄存器、表、Upvalue 中保存的是它，而不是 {@link LuaStateImpl} 本身。
+ *
+ * 协程挂起时，承载线程的调用栈仍引用着协程的 LuaStateImpl，后者因此永远可达；
+ * 线程值只被 Lua 代码（以及持有它的宿主）引用，不再被引用时说明协程已被丢弃，
+ * {@link Coroutine} 据此结束挂起的承载线程。
+ * 每个协程只有一个线程值（LuaStateImpl 弱引用它），因此按引用比较线程值即可判断是否同一个协程。
+ * 协程自己的栈（例如主函数的 Upvalue）引用着自己的线程值时，线程值始终可达，这样的协程不会被回收。
+ *
+ * 与 lua_newthread 相同，宿主通过 API 使用协程时需要让线程值保持可达（例如留在栈上或存入注册表）。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class LuaThread {
+
+    final LuaStateImpl state;
+
+    LuaThread(LuaStateImpl state) {
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return state.toString();
+    }
+
+}
@@ -1,6 +1,7 @@
 package com.ywh.jua.state;
 
 
+import com.ywh.jua.api.LuaString;
 import com.ywh.jua.api.LuaType;
 import com.ywh.jua.number.LuaNumber;
 
@@ -27,13 +28,13 @@ class LuaValue {
             return LUA_TBOOLEAN;
         } else if (val instanceof Long || val instanceof Double) {
             return LUA_TNUMBER;
-        } else if (val instanceof String) {
+        } else if (val instanceof LuaString || val instanceof Rope) {
             return LUA_TSTRING;
         } else if (val instanceof LuaTable) {
             return LUA_TTABLE;
         } else if (val instanceof Closure) {
             return LUA_TFUNCTION;
-        } else if (val instanceof LuaStateImpl) {
+        } else if (val instanceof LuaThread || val instanceof LuaStateImpl) {
             return LUA_TTHREAD;
         }
         else {
@@ -58,12 +59,13 @@ class LuaValue {
      * @return
      */
     static Double toFloat(Object val) {
+        val = Rope.flat(val);
         if (val instanceof Double) {
             return (Double) val;
         } else if (val instanceof Long) {
             return ((Long) val).doubleValue();
-        } else if (val instanceof String) {
-            return LuaNumber.parseFloat((String) val);
+        } else if (val instanceof LuaString) {
+            return LuaNumber.parseFloat(val.toString());
         } else {
             return null;
         }
@@ -76,13 +78,14 @@ class LuaValue {
      * @return
      */
     static Long toInteger(Object val) {
+        val = Rope.flat(val);
         if (val instanceof Long) {
             return (Long) val;
         } else if (val instanceof Double) {
             double n = (Double) val;
             return LuaNumber.isInteger(n) ? (long) n : null;
-        } else if (val instanceof String) {
-            return toInteger((String) val);
+        } else if (val instanceof LuaString) {
+            return toInteger(val.toString());
         } else {
             return null;
         }
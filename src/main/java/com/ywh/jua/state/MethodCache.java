@@ -0,0 +1,121 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+
+/**
+ * 方法调用（SELF 指令）的内联缓存：按接收者的元表记录经 __index 表链解析出的方法。
+ *
+ * 缓存项只在方法由 __index 表链解析得到（见 {@link IndexCache}）时记录，并记下该元表的链缓存的清空次数；
+ * 接收者元表的链上的表写入解析依赖的键或更换元表（链缓存被清空）时该项失效，写入链上的表的其他字段、其他元表的链都不影响该项；
+ * 命中时还要确认接收者自身没有同名字段：形状模式的接收者与记录时的形状相同即可，否则查找一次接收者自身。
+ * 最多记录 WAYS 种元表（多态），超过时转为超多态，此后不再缓存。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class MethodCache {
+
+    private static final int WAYS = 4;
+
+    /**
+     * 接收者的元表
+     */
+    private final LuaTable[] metatables = new LuaTable[WAYS];
+
+    /**
+     * 记录时接收者的形状（形状的键数组，其中没有该键），字典模式的接收者为 null
+     */
+    private final Object[][] layouts = new Object[WAYS][];
+
+    /**
+     * 解析出的方法
+     */
+    private final Object[] methods = new Object[WAYS];
+
+    /**
+     * 记录时元表的链缓存的清空次数（见 {@link IndexCache#epoch()}）
+     */
+    private final int[] epochs = new int[WAYS];
+
+    /**
+     * 已记录的项数，-1 表示超多态
+     */
+    private int size;
+
+    /**
+     * 查找接收者的方法，未命中时返回 null
+     *
+     * @param t
+     * @param key
+     * @return
+     */
+    Object lookup(LuaTable t, LuaString key) {
+        if (size <= 0) {
+            return null;
+        }
+        LuaTable mt = t.metatable;
+        for (int i = 0; i < size; i++) {
+            if (metatables[i] == mt) {
+                IndexCache cache = mt.indexCache;
+                if (!cache.validate() || cache.epoch() != epochs[i]) {
+                    return null;
+                }
+                Object[] layout = layouts[i];
+                if ((layout != null && layout == t.shapeKeys()) || t.get(key) == null) {
+                    return methods[i];
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一般路径解析出方法之后记录：接收者自身没有该字段，且方法是元表的 __index 表链缓存中的结果时才记录。
+     *
+     * @param t
+     * @param key
+     * @param method
+     */
+    void update(LuaTable t, LuaString key, Object method) {
+        LuaTable mt = t.metatable;
+        if (size < 0 || method == null || mt == null || mt.indexCache == null) {
+            return;
+        }
+        IndexCache cache = mt.indexCache;
+        if (cache.get(key) != method || t.get(key) != null) {
+            return;
+        }
+        int i = 0;
+        while (i < size && metatables[i] != mt) {
+            i++;
+        }
+        if (i == WAYS) {
+            clear(-1);
+            return;
+        }
+        metatables[i] = mt;
+        // 形状中有该键（值为 nil）时，同一形状的其他表可能有值，不能只比较形状
+        layouts[i] = t.slotOf(key) < 0 ? t.shapeKeys() : null;
+        methods[i] = method;
+        epochs[i] = cache.epoch();
+        if (i == size) {
+            size++;
+        }
+    }
+
+    /**
+     * 清空所有缓存项
+     *
+     * @param newSize 0，或者 -1 表示转为超多态
+     */
+    private void clear(int newSize) {
+        for (int i = 0; i < WAYS; i++) {
+            metatables[i] = null;
+            layouts[i] = null;
+            methods[i] = null;
+        }
+        size = newSize;
+    }
+
+}
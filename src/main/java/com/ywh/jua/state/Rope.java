@@ -0,0 +1,105 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+
+import java.util.ArrayDeque;
+
+/**
+ * 绳索：拼接得到的长字符串，只记录左右两部分（字符串或绳索），第一次访问内容时才展开成 {@link LuaString}。
+ *
+ * 反复执行 s = s .. piece 时，每次拼接只创建一个节点，不必复制已有的内容，总的代价从 O(n²) 降为 O(n)。
+ * 绳索只出现在寄存器、表的值和 Upvalue 中：通过 API 取值（{@link LuaStack#get(int)}）、作为表的键、
+ * 比较、转换为数字时都会先展开；求长度不需要展开。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class Rope {
+
+    /**
+     * 长度不少于该值的字符串在拼接时按引用保留（生成绳索），更短的字符串直接复制
+     */
+    static final int MIN_LENGTH = 128;
+
+    /**
+     * 左边部分，展开后为 null
+     */
+    private Object left;
+
+    /**
+     * 右边部分，展开后为 null
+     */
+    private Object right;
+
+    private final int length;
+
+    /**
+     * 展开的结果
+     */
+    private LuaString flat;
+
+    Rope(Object left, Object right) {
+        this.left = left;
+        this.right = right;
+        this.length = length(left) + length(right);
+    }
+
+    /**
+     * 字符串或绳索的长度
+     *
+     * @param s
+     * @return
+     */
+    static int length(Object s) {
+        return s instanceof Rope ? ((Rope) s).length : ((LuaString) s).length();
+    }
+
+    /**
+     * 绳索展开成 LuaString，其他值不变
+     *
+     * @param val
+     * @return
+     */
+    static Object flat(Object val) {
+        return val instanceof Rope ? ((Rope) val).flat() : val;
+    }
+
+    LuaString flat() {
+        if (flat == null) {
+            flatten();
+        }
+        return flat;
+    }
+
+    @Override
+    public String toString() {
+        return flat().toString();
+    }
+
+    /**
+     * 从右往左把各部分复制到同一个数组中：用显式的栈代替递归，任意深度的绳索都不会栈溢出。
+     */
+    private void flatten() {
+        byte[] buf = new byte[length];
+        int pos = length;
+        ArrayDeque<Object> todo = new ArrayDeque<>();
+        todo.push(left);
+        todo.push(right);
+        while (!todo.isEmpty()) {
+            Object node = todo.pop();
+            if (node instanceof Rope && ((Rope) node).flat == null) {
+                Rope r = (Rope) node;
+                todo.push(r.left);
+                todo.push(r.right);
+            } else {
+                LuaString s = node instanceof Rope ? ((Rope) node).flat : (LuaString) node;
+                pos -= s.length();
+                s.getBytes(0, s.length(), buf, pos);
+            }
+        }
+        flat = LuaString.valueOf(buf);
+        left = null;
+        right = null;
+    }
+
+}
@@ -0,0 +1,206 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 形状（隐藏类）：以相同顺序加入相同字符串键的表共享同一个形状，形状记录每个键对应的槽位，表只保存值数组。
+ *
+ * 形状构成一棵从 ROOT 开始的转换树：加入新键时沿子节点转换，子节点不存在时创建并记录下来，
+ * 因此同一个构造式（如 {x = ..., y = ...}）创建的所有表最终指向同一个形状，形状的标识可以作为内联缓存的依据。
+ *
+ * 形状不可变，所有 Lua 状态共享；转换表是并发的，不同线程中的 Lua 状态可以同时使用。
+ * 转换表弱引用子节点，子节点强引用父节点：形状只被表和后代形状引用，没有表使用时被回收，并从父节点的转换表中删除。
+ * 键数超过 MAX_KEYS、或者存活的形状数超过系统属性 jua.shape.max（默认 65536）时不再转换，表退回字典模式；
+ * 形状被回收后预算随之恢复，新建的表重新使用形状。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class Shape {
+
+    /**
+     * 形状的最大键数
+     */
+    static final int MAX_KEYS = 16;
+
+    /**
+     * 键数超过该值时建立索引，否则线性扫描
+     */
+    private static final int LINEAR_KEYS = 8;
+
+    /**
+     * 存活的形状数的上限，避免以字符串为键的字典不断产生新的形状
+     */
+    private static final int MAX_SHAPES = Integer.getInteger("jua.shape.max", 1 << 16);
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    /**
+     * 被回收的形状的转换
+     */
+    private static final ReferenceQueue<Shape> QUEUE = new ReferenceQueue<>();
+
+    /**
+     * 尚未处理的转换：转换表随父节点一起不可达时转换本身仍然可达，保证被回收的形状一定会进入 QUEUE 并计数
+     */
+    private static final Set<Transition> LIVE = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 没有键的形状
+     */
+    static final Shape ROOT = new Shape(null, new Object[0]);
+
+    /**
+     * 父节点，后代形状存活时转换树上到它的路径也保留
+     */
+    private final Shape parent;
+
+    /**
+     * 槽位 i 的键
+     */
+    final Object[] keys;
+
+    /**
+     * 键到槽位的索引，键数不超过 LINEAR_KEYS 时为 null
+     */
+    private final Map<Object, Integer> index;
+
+    /**
+     * 加入一个键后转换到的形状
+     */
+    private final Map<Object, Transition> transitions = new ConcurrentHashMap<>();
+
+    /**
+     * 最近一次转换，同一个构造式反复执行时不必查找转换表
+     */
+    private Transition last;
+
+    private Shape(Shape parent, Object[] keys) {
+        this.parent = parent;
+        this.keys = keys;
+        if (keys.length > LINEAR_KEYS) {
+            index = new HashMap<>(keys.length << 1);
+            for (int i = 0; i < keys.length; i++) {
+                index.put(keys[i], i);
+            }
+        } else {
+            index = null;
+        }
+    }
+
+    /**
+     * 键数
+     *
+     * @return
+     */
+    int size() {
+        return keys.length;
+    }
+
+    /**
+     * 键的槽位，不存在时返回 -1
+     *
+     * @param key
+     * @return
+     */
+    int indexOf(Object key) {
+        if (index != null) {
+            Integer i = index.get(key);
+            return i == null ? -1 : i;
+        }
+        Object[] ks = keys;
+        for (int i = 0; i < ks.length; i++) {
+            Object k = ks[i];
+            if (k == key || k.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 加入新键（调用方保证键不存在）后的形状，超过上限时返回 null
+     *
+     * @param key
+     * @return
+     */
+    Shape add(LuaString key) {
+        Transition t = last;
+        Shape s = t != null ? t.get() : null;
+        if (s != null && key.equals(s.keys[keys.length])) {
+            return s;
+        }
+        t = transitions.get(key);
+        s = t != null ? t.get() : null;
+        if (s == null) {
+            expunge();
+            if (keys.length >= MAX_KEYS || COUNT.get() >= MAX_SHAPES) {
+                return null;
+            }
+            // 键可能是大字符串的子串，不让形状引用原来的字节数组（驻留的字符串已经是独立的）
+            key = key.compact();
+            Object[] ks = new Object[keys.length + 1];
+            System.arraycopy(keys, 0, ks, 0, keys.length);
+            ks[keys.length] = key;
+            s = new Shape(this, ks);
+            Transition created = new Transition(this, key, s);
+            for (;;) {
+                Transition old = transitions.putIfAbsent(key, created);
+                if (old == null) {
+                    LIVE.add(created);
+                    COUNT.incrementAndGet();
+                    t = created;
+                    break;
+                }
+                Shape o = old.get();
+                if (o != null) {
+                    s = o;
+                    t = old;
+                    break;
+                }
+                // 原来的形状已被回收，转换尚未处理
+                transitions.remove(key, old);
+            }
+        }
+        last = t;
+        return s;
+    }
+
+    /**
+     * 删除已被回收的形状的转换，归还预算
+     */
+    private static void expunge() {
+        for (Transition t; (t = (Transition) QUEUE.poll()) != null; ) {
+            if (LIVE.remove(t)) {
+                t.parent.transitions.remove(t.key, t);
+                COUNT.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 父节点加入键 key 后转换到的形状（弱引用）
+     */
+    private static final class Transition extends WeakReference<Shape> {
+
+        private final Shape parent;
+
+        private final Object key;
+
+        Transition(Shape parent, Object key, Shape child) {
+            super(child, QUEUE);
+            this.parent = parent;
+            this.key = key;
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.ywh.jua.state;
+
+import static com.ywh.jua.api.LuaState.LUA_MINSTACK;
+
+/**
+ * 值栈池：回收已结束协程的值栈，供之后创建的线程复用。
+ *
+ * 主线程和它创建的所有线程共享同一个池（与注册表一样属于全局状态），
+ * 同一时刻只有一个 Lua 线程在运行，因此不需要同步。
+ * 池的容量可以通过系统属性 jua.thread.pool 配置（0 表示不回收）；扩容过大的值栈不回收，由 GC 处理。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class StackPool {
+
+    /**
+     * 池中最多保留的值栈数量
+     */
+    static final int CAPACITY = Integer.getInteger("jua.thread.pool", 256);
+
+    /**
+     * 可回收值栈的最大槽位数
+     */
+    private static final int MAX_SLOTS = LUA_MINSTACK << 4;
+
+    private final ValueStack[] free = new ValueStack[CAPACITY];
+
+    private int size;
+
+    /**
+     * 命中次数：新线程复用了池中的值栈
+     */
+    long hits;
+
+    /**
+     * 未命中次数：池为空，新线程分配了新的值栈
+     */
+    long misses;
+
+    /**
+     * 取出一个空的值栈，池为空时新建。
+     *
+     * @return
+     */
+    ValueStack acquire() {
+        if (size == 0) {
+            misses++;
+            return new ValueStack();
+        }
+        hits++;
+        ValueStack values = free[--size];
+        free[size] = null;
+        return values;
+    }
+
+    /**
+     * 回收值栈：清空全部槽位（包括栈顶之上残留的寄存器），避免池中的值栈持有已失效的对象。
+     *
+     * @param values
+     */
+    void release(ValueStack values) {
+        if (size == CAPACITY || values.slots.length > MAX_SLOTS) {
+            return;
+        }
+        values.clear(0, values.slots.length);
+        values.top = 0;
+        free[size++] = values;
+    }
+
+}
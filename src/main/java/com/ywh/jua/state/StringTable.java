@@ -0,0 +1,80 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+import com.ywh.jua.chunk.Prototype;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * 短字符串的驻留表（lua-5.3.4/src/lstring.c#internshrstr()）：内容相同的短字符串只保留一个实例。
+ *
+ * 常量、通过 API 传入的字符串、拼接结果等在进入虚拟机时驻留，字段名、表的键因此通常是同一个对象，
+ * 表的查找和相等比较先比较引用即可命中，不必逐字节比较。驻留表对字符串是弱引用，不再使用的字符串照常回收。
+ *
+ * 与注册表一样属于全局状态，由主线程和它创建的所有线程共享；同一时刻只有一个 Lua 线程在运行，因此不需要同步。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class StringTable {
+
+    /**
+     * 不超过该字节数的字符串才驻留（lua-5.3.4/src/llimits.h#LUAI_MAXSHORTLEN）
+     */
+    static final int MAX_SHORT_LEN = 40;
+
+    private final WeakHashMap<LuaString, WeakReference<LuaString>> strings = new WeakHashMap<>();
+
+    StringTable() {
+        // 元方法名使用 TagMethod 中的实例，元表的键与查找元方法时使用的键是同一个对象
+        for (TagMethod tm : TagMethod.values()) {
+            intern(tm.event);
+        }
+    }
+
+    /**
+     * 返回内容相同的驻留实例：短字符串第一次出现时驻留（大字符串的子串先复制一份，不引用原来的字节数组），长字符串原样返回。
+     *
+     * @param s
+     * @return
+     */
+    LuaString intern(LuaString s) {
+        if (s.length() > MAX_SHORT_LEN) {
+            return s;
+        }
+        WeakReference<LuaString> ref = strings.get(s);
+        LuaString t = ref != null ? ref.get() : null;
+        if (t == null) {
+            t = s.compact();
+            strings.put(t, new WeakReference<>(t));
+        }
+        return t;
+    }
+
+    /**
+     * 驻留值：短字符串驻留，其他值不变
+     *
+     * @param val
+     * @return
+     */
+    Object internValue(Object val) {
+        return val instanceof LuaString ? intern((LuaString) val) : val;
+    }
+
+    /**
+     * 驻留函数原型及其子函数原型的字符串常量
+     *
+     * @param proto
+     */
+    void internConstants(Prototype proto) {
+        Object[] constants = proto.getConstants();
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = internValue(constants[i]);
+        }
+        for (Prototype p : proto.getProtos()) {
+            internConstants(p);
+        }
+    }
+
+}
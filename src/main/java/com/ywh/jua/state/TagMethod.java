@@ -0,0 +1,61 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.ArithOp;
+import com.ywh.jua.api.LuaString;
+
+/**
+ * 元方法事件（lua-5.3.4/src/ltm.h#TMS）
+ *
+ * 元表用一个 int 按事件的序数记录哪些元方法已知不存在（见 {@link LuaTable#metamethod(TagMethod)}），
+ * 因此事件数不能超过 32。算术事件的顺序与 {@link ArithOp} 一致。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+enum TagMethod {
+
+    ADD("__add"),
+    SUB("__sub"),
+    MUL("__mul"),
+    MOD("__mod"),
+    POW("__pow"),
+    DIV("__div"),
+    IDIV("__idiv"),
+    BAND("__band"),
+    BOR("__bor"),
+    BXOR("__bxor"),
+    SHL("__shl"),
+    SHR("__shr"),
+    UNM("__unm"),
+    BNOT("__bnot"),
+    INDEX("__index"),
+    NEWINDEX("__newindex"),
+    LEN("__len"),
+    EQ("__eq"),
+    LT("__lt"),
+    LE("__le"),
+    CONCAT("__concat"),
+    CALL("__call");
+
+    /**
+     * 元表中的字段名
+     */
+    final LuaString event;
+
+    TagMethod(String event) {
+        this.event = LuaString.valueOf(event);
+    }
+
+    private static final TagMethod[] VALUES = values();
+
+    /**
+     * 算术、位运算对应的事件
+     *
+     * @param op
+     * @return
+     */
+    static TagMethod of(ArithOp op) {
+        return VALUES[op.ordinal()];
+    }
+
+}
@@ -38,12 +38,12 @@ class UpvalueHolder {
     }
 
     Object get() {
-        return stack != null ? stack.get(index + 1) : value;
+        return stack != null ? stack.reg(index) : value;
     }
 
     void set(Object value) {
         if (stack != null) {
-            stack.set(index + 1, value);
+            stack.setReg(index, value);
         } else {
             this.value = value;
         }
@@ -56,7 +56,7 @@ class UpvalueHolder {
         if (stack == null) {
             return;
         }
-        value = stack.get(index + 1);
+        value = stack.reg(index);
         stack = null;
     }
 
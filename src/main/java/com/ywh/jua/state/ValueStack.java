@@ -0,0 +1,131 @@
+package com.ywh.jua.state;
+
+import java.util.Arrays;
+
+import static com.ywh.jua.api.LuaState.LUAI_MAXSTACK;
+import static com.ywh.jua.api.LuaState.LUA_MINSTACK;
+
+/**
+ * 值栈：每个线程一个，所有调用帧共享的连续存储。
+ *
+ * 调用帧（{@link LuaStack}）只是值栈上的一个窗口 [base, top)，寄存器 R(i) 对应槽位 base + i；
+ * 调用函数时，参数已经在主调用帧的栈顶，原地成为被调用帧的前几个寄存器，返回值再整体复制回函数所在的位置，
+ * 不必为每次调用分配新的存储。
+ *
+ * 数字不装箱，存放在与 slots 平行的 nums 中，由 tags 标记槽位类型。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class ValueStack {
+
+    /**
+     * 值栈的最大槽位数，可以通过系统属性 jua.stack.max 配置，默认为 {@link com.ywh.jua.api.LuaState#LUAI_MAXSTACK}。
+     */
+    static final int MAX_SIZE = Integer.getInteger("jua.stack.max", LUAI_MAXSTACK);
+
+    /**
+     * 引用槽位（nil、布尔、字符串、表、闭包等）
+     */
+    Object[] slots;
+
+    /**
+     * 数字槽位（整数值或浮点数的位模式）
+     */
+    long[] nums;
+
+    /**
+     * 槽位类型
+     */
+    byte[] tags;
+
+    /**
+     * 栈顶（第一个空闲槽位的绝对位置）
+     */
+    int top;
+
+    ValueStack() {
+        this(LUA_MINSTACK);
+    }
+
+    ValueStack(int size) {
+        int n = Math.max(size, 1);
+        slots = new Object[n];
+        nums = new long[n];
+        tags = new byte[n];
+    }
+
+    /**
+     * 保证至少有 size 个槽位：容量不足时按倍数扩容（均摊 O(1)），超过最大槽位数时报错。
+     *
+     * @param size
+     */
+    void ensure(int size) {
+        if (size <= slots.length) {
+            return;
+        }
+        if (size > MAX_SIZE) {
+            throw new RuntimeException("stack overflow");
+        }
+        int n = (int) Math.min(Math.max((long) slots.length << 1, size), MAX_SIZE);
+        slots = Arrays.copyOf(slots, n);
+        nums = Arrays.copyOf(nums, n);
+        tags = Arrays.copyOf(tags, n);
+    }
+
+    /**
+     * 复制 n 个槽位（连同槽位类型，不装箱），源区间和目标区间可以重叠。
+     *
+     * @param from
+     * @param to
+     * @param n
+     */
+    void copy(int from, int to, int n) {
+        System.arraycopy(slots, from, slots, to, n);
+        System.arraycopy(nums, from, nums, to, n);
+        System.arraycopy(tags, from, tags, to, n);
+    }
+
+    /**
+     * 复制 n 个槽位到另一个值栈（连同槽位类型，不装箱），用于线程之间移动值。
+     *
+     * @param from
+     * @param dst
+     * @param to
+     * @param n
+     */
+    void copyTo(int from, ValueStack dst, int to, int n) {
+        System.arraycopy(slots, from, dst.slots, to, n);
+        System.arraycopy(nums, from, dst.nums, to, n);
+        System.arraycopy(tags, from, dst.tags, to, n);
+    }
+
+    /**
+     * 把 [from, to) 置为 nil
+     *
+     * @param from
+     * @param to
+     */
+    void clear(int from, int to) {
+        if (from < to) {
+            Arrays.fill(slots, from, to, null);
+            Arrays.fill(tags, from, to, LuaStack.TAG_REF);
+        }
+    }
+
+    /**
+     * 设置栈顶：新增的槽位置为 nil，舍弃的槽位清空（便于回收）。
+     *
+     * @param newTop
+     */
+    void setTop(int newTop) {
+        ensure(newTop);
+        if (newTop > top) {
+            clear(top, newTop);
+        } else {
+            clear(newTop, top);
+        }
+        top = newTop;
+    }
+
+}
@@ -3,6 +3,7 @@ package com.ywh.jua.stdlib;
 
 import com.ywh.jua.api.JavaFunction;
 import com.ywh.jua.api.LuaState;
+import com.ywh.jua.api.LuaString;
 import com.ywh.jua.api.LuaType;
 import com.ywh.jua.api.ThreadStatus;
 
@@ -25,6 +26,16 @@ import static com.ywh.jua.constant.TokenConstant.LEN;
 public class BasicLib {
 
 
+    /**
+     * next 函数（也是 pairs 返回的迭代器），解释器的 TFORCALL 指令据此识别并直接遍历表。
+     */
+    public static final JavaFunction NEXT = BasicLib::baseNext;
+
+    /**
+     * ipairs 返回的迭代器，解释器的 TFORCALL 指令据此识别并直接遍历表。
+     */
+    public static final JavaFunction IPAIRS_ITER = BasicLib::iPairsAux;
+
     /**
      * 基础库函数
      */
@@ -37,7 +48,7 @@ public class BasicLib {
         BASE_FUNCS.put("select", BasicLib::baseSelect);
         BASE_FUNCS.put("ipairs", BasicLib::baseIpairs);
         BASE_FUNCS.put("pairs", BasicLib::basePairs);
-        BASE_FUNCS.put("next", BasicLib::baseNext);
+        BASE_FUNCS.put("next", NEXT);
         BASE_FUNCS.put("load", BasicLib::baseLoad);
         BASE_FUNCS.put("loadfile", BasicLib::baseLoadFile);
         BASE_FUNCS.put("dofile", BasicLib::baseDoFile);
@@ -205,7 +216,7 @@ public class BasicLib {
     private static int baseIpairs(LuaState ls) {
         ls.checkAny(1);
         /* iteration function */
-        ls.pushJavaFunction(BasicLib::iPairsAux);
+        ls.pushJavaFunction(IPAIRS_ITER);
         /* state */
         ls.pushValue(1);
         /* initial value */
@@ -237,7 +248,7 @@ public class BasicLib {
         /* no metamethod? */
         if (ls.getMetafield(1, PAIRS) == LUA_TNIL) {
             /* will return generator, */
-            ls.pushJavaFunction(BasicLib::baseNext);
+            ls.pushJavaFunction(NEXT);
             /* state, */
             ls.pushValue(1);
             ls.pushNil();
@@ -279,14 +290,14 @@ public class BasicLib {
      * @return
      */
     private static int baseLoad(LuaState ls) {
-        String chunk = ls.toString(1);
+        LuaString chunk = ls.toLuaString(1);
         String mode = ls.optString(3, "bt");
         /* 'env' index or 0 if no 'env' */
         int env = !ls.isNone(4) ? 4 : 0;
         /* loading a string? */
         if (chunk != null) {
-            String chunkname = ls.optString(2, chunk);
-            ThreadStatus status = ls.load(chunk.getBytes(), chunkname, mode);
+            String chunkname = ls.optString(2, chunk.toString());
+            ThreadStatus status = ls.load(chunk.toBytes(), chunkname, mode);
             return loadAux(ls, status, env);
         }
         /* loading from a reader function */
@@ -366,7 +377,19 @@ public class BasicLib {
      */
     private static int basePcall(LuaState ls) {
         int nArgs = ls.getTop() - 1;
-        ThreadStatus status = ls.pCall(nArgs, -1, 0);
+        ThreadStatus status = ls.pCallK(nArgs, -1, 0, BasicLib::finishPcall);
+        return finishPcall(ls, status);
+    }
+
+    /**
+     * pcall 的延续：调用结束（或挂起后恢复并结束）时在结果之前加上调用状态
+     * lua-5.3.4/src/lbaselib.c#finishpcall()
+     *
+     * @param ls
+     * @param status
+     * @return
+     */
+    private static int finishPcall(LuaState ls, ThreadStatus status) {
         ls.pushBoolean(status == LUA_OK);
         ls.insert(1);
         return ls.getTop();
@@ -11,6 +11,7 @@ import java.util.Map;
 import static com.ywh.jua.api.LuaType.LUA_TFUNCTION;
 import static com.ywh.jua.api.ThreadStatus.LUA_OK;
 import static com.ywh.jua.api.ThreadStatus.LUA_YIELD;
+import static com.ywh.jua.vm.Instructions.luaUpvalueIndex;
 
 /**
  * 协程库
@@ -217,8 +218,25 @@ public class CoroutineLib {
      * @return
      */
     private static int coWrap(LuaStateImpl ls) {
-        // TODO
-        return 0;
+        coCreate(ls);
+        ls.pushJavaClosure(CoroutineLib::auxWrap, 1);
+        return 1;
+    }
+
+    /**
+     * coroutine.wrap 返回的函数：恢复 Upvalue 中的协程，出错时向调用方抛出错误。
+     * lua-5.3.4/src/lcorolib.c#auxwrap()
+     *
+     * @param ls
+     * @return
+     */
+    private static int auxWrap(LuaStateImpl ls) {
+        LuaStateImpl co = ls.toThread(luaUpvalueIndex(1));
+        int r = auxResume(ls, co, ls.getTop());
+        if (r < 0) {
+            return ls.error();
+        }
+        return r;
     }
 
     /**
@@ -229,16 +247,21 @@ public class CoroutineLib {
      * @return
      */
     private static int auxResume(LuaStateImpl ls, LuaStateImpl co, int narg) {
-        if (ls.checkStack(narg)) {
+        if (!ls.checkStack(narg)) {
             ls.pushString("too many arguments to resume");
             /* error flag */
             return -1;
         }
-        if (co.status() == LUA_OK && co.getTop() == 0) {
+        if (co.status() != LUA_YIELD && (co.status() != LUA_OK || co.getTop() == 0)) {
             ls.pushString("cannot resume dead coroutine");
             /* error flag */
             return -1;
         }
+        if (co.status() != LUA_YIELD && co.getStack()) {
+            ls.pushString("cannot resume non-suspended coroutine");
+            /* error flag */
+            return -1;
+        }
         ls.xMove(co, narg);
         ThreadStatus status = co.resume(ls, narg);
         if (status == LUA_OK || status == LUA_YIELD) {
@@ -249,9 +272,13 @@ public class CoroutineLib {
                 return -1;
             }
             co.xMove(ls, nres);
+            if (status == LUA_OK) {
+                co.closeThread();
+            }
             return nres;
         } else {
             co.xMove(ls, 1);
+            co.closeThread();
             return -1;
         }
     }
@@ -0,0 +1,78 @@
+package com.ywh.jua.stdlib;
+
+import com.ywh.jua.api.LuaString;
+
+import java.util.Arrays;
+
+/**
+ * 字符串缓冲区（lua-5.3.4/src/lauxlib.h#luaL_Buffer）：按字节追加，容量不足时成倍扩大，最后生成 {@link LuaString}。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class LuaBuffer {
+
+    private byte[] buf;
+
+    private int size;
+
+    LuaBuffer(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * 追加一个字节
+     *
+     * @param c
+     */
+    void appendByte(int c) {
+        ensure(1);
+        buf[size++] = (byte) c;
+    }
+
+    /**
+     * 追加字符串的字节 [begin, end)
+     *
+     * @param s
+     * @param begin
+     * @param end
+     */
+    void append(LuaString s, int begin, int end) {
+        ensure(end - begin);
+        s.getBytes(begin, end, buf, size);
+        size += end - begin;
+    }
+
+    void append(LuaString s) {
+        append(s, 0, s.length());
+    }
+
+    /**
+     * 追加整数的十进制表示
+     *
+     * @param n
+     */
+    void append(long n) {
+        append(LuaString.valueOf(Long.toString(n)));
+    }
+
+    /**
+     * 缓冲区的内容（多余的容量不保留）
+     *
+     * @return
+     */
+    LuaString toLuaString() {
+        return LuaString.valueOf(size == buf.length ? buf : Arrays.copyOf(buf, size));
+    }
+
+    private void ensure(int n) {
+        if (buf.length - size < n) {
+            long cap = Math.max((long) buf.length * 2, (long) size + n);
+            if (cap > Integer.MAX_VALUE - 8) {
+                throw new RuntimeException("resulting string too large");
+            }
+            buf = Arrays.copyOf(buf, (int) cap);
+        }
+    }
+
+}
@@ -0,0 +1,423 @@
+package com.ywh.jua.stdlib;
+
+import com.ywh.jua.api.LuaString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 编译后的 Lua 模式（lua-5.3.4/src/lstrlib.c 中 match 的模式部分）
+ *
+ * 模式编译为一个项的序列：单字符类（字面字节或 256 位的字符集合，附带重复修饰符 *、+、-、?）、捕获的开始和结束、
+ * 位置捕获、%b、%f、反向引用以及结尾的 $。字符类（%a、[a-z%d] 等）在编译时展开为集合，匹配时只需按位判断，
+ * 不必再解析模式串；格式错误也在编译时报告。匹配过程见 {@link MatchState}。
+ *
+ * 编译结果按模式串缓存在一个容量有限的 LRU 中（系统属性 jua.pattern.cache，默认 64），
+ * 所有 Lua 状态共享，find、match、gmatch、gsub 在循环中反复使用同一个模式时只编译一次。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class LuaPattern {
+
+    /**
+     * 最多的捕获数（lua-5.3.4/src/luaconf.h#LUA_MAXCAPTURES）
+     */
+    static final int MAX_CAPTURES = 32;
+
+    private static final int CACHE_SIZE = Integer.getInteger("jua.pattern.cache", 64);
+
+    private static final Map<LuaString, LuaPattern> CACHE = new LinkedHashMap<LuaString, LuaPattern>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LuaString, LuaPattern> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    /* 项的种类 */
+
+    static final byte SINGLE = 0;
+    static final byte OPEN = 1;
+    static final byte POSITION = 2;
+    static final byte CLOSE = 3;
+    static final byte BALANCE = 4;
+    static final byte FRONTIER = 5;
+    static final byte BACKREF = 6;
+    static final byte END = 7;
+
+    /* 单字符类的重复修饰符 */
+
+    static final byte ONE = 0;
+    static final byte STAR = 1;
+    static final byte PLUS = 2;
+    static final byte MINUS = 3;
+    static final byte OPT = 4;
+
+    /**
+     * 是否以 ^ 开头（只在目标串的起始位置匹配）
+     */
+    final boolean anchor;
+
+    /**
+     * 项数
+     */
+    final int size;
+
+    final byte[] kinds;
+
+    /**
+     * 单字符类的重复修饰符
+     */
+    final byte[] quants;
+
+    /**
+     * 单字符类的字面字节（sets 为 null 时）、%b 的两个字节（x << 8 | y）、反向引用的捕获序号（从 0 开始）
+     */
+    final int[] args;
+
+    /**
+     * 单字符类、%f 的字符集合（4 个 long 共 256 位）
+     */
+    final long[][] sets;
+
+    /**
+     * 捕获数
+     */
+    final int captures;
+
+    /**
+     * 匹配的第一个字节必须是该字节，没有这样的限制时为 -1
+     */
+    final int firstByte;
+
+    /**
+     * 匹配的第一个字节必须属于该集合，没有这样的限制时为 null
+     */
+    final long[] firstSet;
+
+    private LuaPattern(boolean anchor, int size, byte[] kinds, byte[] quants, int[] args, long[][] sets, int captures) {
+        this.anchor = anchor;
+        this.size = size;
+        this.kinds = kinds;
+        this.quants = quants;
+        this.args = args;
+        this.sets = sets;
+        this.captures = captures;
+        // 跳过开头的捕获，第一个消耗字节的项决定匹配从什么字节开始；查找时先跳过不可能开始匹配的位置
+        int k = 0;
+        while (k < size && (kinds[k] == OPEN || kinds[k] == POSITION)) {
+            k++;
+        }
+        int first = -1;
+        long[] set = null;
+        if (k < size && kinds[k] == SINGLE && (quants[k] == ONE || quants[k] == PLUS)) {
+            if (sets[k] == null) {
+                first = args[k];
+            } else {
+                set = sets[k];
+            }
+        } else if (k < size && kinds[k] == BALANCE) {
+            first = args[k] >>> 8;
+        }
+        this.firstByte = first;
+        this.firstSet = set;
+    }
+
+    /**
+     * 取模式的编译结果，未缓存时编译并放入缓存
+     *
+     * @param pattern
+     * @return
+     */
+    static LuaPattern of(LuaString pattern) {
+        synchronized (CACHE) {
+            LuaPattern p = CACHE.get(pattern);
+            if (p != null) {
+                return p;
+            }
+        }
+        LuaPattern p = compile(pattern);
+        synchronized (CACHE) {
+            CACHE.put(pattern.compact(), p);
+        }
+        return p;
+    }
+
+    /**
+     * 编译模式
+     *
+     * @param p
+     * @return
+     */
+    static LuaPattern compile(LuaString p) {
+        int n = p.length();
+        boolean anchor = n > 0 && p.byteAt(0) == '^';
+        byte[] kinds = new byte[n];
+        byte[] quants = new byte[n];
+        int[] args = new int[n];
+        long[][] sets = new long[n][];
+        // 已开始的捕获数，以及各捕获是否已结束（反向引用只能引用已结束的捕获）
+        int opened = 0;
+        boolean[] closed = new boolean[MAX_CAPTURES];
+        int size = 0;
+        int i = anchor ? 1 : 0;
+        while (i < n) {
+            int c = p.byteAt(i);
+            switch (c) {
+                case '(':
+                    if (opened >= MAX_CAPTURES) {
+                        throw new RuntimeException("too many captures");
+                    }
+                    opened++;
+                    if (i + 1 < n && p.byteAt(i + 1) == ')') {
+                        kinds[size++] = POSITION;
+                        closed[opened - 1] = true;
+                        i += 2;
+                    } else {
+                        kinds[size++] = OPEN;
+                        i++;
+                    }
+                    continue;
+                case ')': {
+                    int l = opened - 1;
+                    while (l >= 0 && closed[l]) {
+                        l--;
+                    }
+                    if (l < 0) {
+                        throw new RuntimeException("invalid pattern capture");
+                    }
+                    closed[l] = true;
+                    kinds[size++] = CLOSE;
+                    i++;
+                    continue;
+                }
+                case '$':
+                    if (i + 1 == n) {
+                        kinds[size++] = END;
+                        i++;
+                        continue;
+                    }
+                    break;
+                case '%':
+                    if (i + 1 >= n) {
+                        throw new RuntimeException("malformed pattern (ends with '%')");
+                    }
+                    int e = p.byteAt(i + 1);
+                    if (e == 'b') {
+                        if (i + 3 >= n) {
+                            throw new RuntimeException("malformed pattern (missing arguments to '%b')");
+                        }
+                        kinds[size] = BALANCE;
+                        args[size++] = p.byteAt(i + 2) << 8 | p.byteAt(i + 3);
+                        i += 4;
+                        continue;
+                    }
+                    if (e == 'f') {
+                        i += 2;
+                        if (i >= n || p.byteAt(i) != '[') {
+                            throw new RuntimeException("missing '[' after '%f' in pattern");
+                        }
+                        int end = classEnd(p, i);
+                        kinds[size] = FRONTIER;
+                        sets[size++] = bracketSet(p, i, end - 1);
+                        i = end;
+                        continue;
+                    }
+                    if (e >= '0' && e <= '9') {
+                        int l = e - '1';
+                        if (l < 0 || l >= opened || !closed[l]) {
+                            throw new RuntimeException(String.format("invalid capture index %%%d", l + 1));
+                        }
+                        kinds[size] = BACKREF;
+                        args[size++] = l;
+                        i += 2;
+                        continue;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            // 单字符类，后面可以跟一个重复修饰符
+            int end = classEnd(p, i);
+            kinds[size] = SINGLE;
+            if (c == '.') {
+                sets[size] = new long[]{-1L, -1L, -1L, -1L};
+            } else if (c == '%') {
+                sets[size] = classSet(p.byteAt(i + 1));
+            } else if (c == '[') {
+                sets[size] = bracketSet(p, i, end - 1);
+            } else {
+                args[size] = c;
+            }
+            byte q = ONE;
+            if (end < n) {
+                switch (p.byteAt(end)) {
+                    case '*':
+                        q = STAR;
+                        break;
+                    case '+':
+                        q = PLUS;
+                        break;
+                    case '-':
+                        q = MINUS;
+                        break;
+                    case '?':
+                        q = OPT;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            quants[size++] = q;
+            i = q == ONE ? end : end + 1;
+        }
+        return new LuaPattern(anchor, size, kinds, quants, args, sets, opened);
+    }
+
+    /**
+     * 单字符类 p[i...] 之后的位置（lua-5.3.4/src/lstrlib.c#classEnd()）
+     *
+     * @param p
+     * @param i
+     * @return
+     */
+    private static int classEnd(LuaString p, int i) {
+        int n = p.length();
+        int c = p.byteAt(i++);
+        if (c == '%') {
+            if (i >= n) {
+                throw new RuntimeException("malformed pattern (ends with '%')");
+            }
+            return i + 1;
+        }
+        if (c == '[') {
+            if (i < n && p.byteAt(i) == '^') {
+                i++;
+            }
+            // 第一个字符总是属于集合（可以是 ']'）
+            do {
+                if (i >= n) {
+                    throw new RuntimeException("malformed pattern (missing ']')");
+                }
+                c = p.byteAt(i++);
+                if (c == '%' && i < n) {
+                    i++;
+                }
+            } while (i >= n || p.byteAt(i) != ']');
+            return i + 1;
+        }
+        return i;
+    }
+
+    /**
+     * 字符类 %x 的集合
+     *
+     * @param cl
+     * @return
+     */
+    private static long[] classSet(int cl) {
+        long[] set = new long[4];
+        for (int c = 0; c < 256; c++) {
+            if (matchClass(c, cl)) {
+                set[c >>> 6] |= 1L << c;
+            }
+        }
+        return set;
+    }
+
+    /**
+     * 集合 [...] 的集合，p[begin] 是 '['，p[end] 是 ']'（lua-5.3.4/src/lstrlib.c#matchbracketclass()）
+     *
+     * @param p
+     * @param begin
+     * @param end
+     * @return
+     */
+    private static long[] bracketSet(LuaString p, int begin, int end) {
+        boolean sig = true;
+        int start = begin + 1;
+        if (p.byteAt(start) == '^') {
+            sig = false;
+            start++;
+        }
+        long[] set = new long[4];
+        for (int c = 0; c < 256; c++) {
+            boolean in = false;
+            for (int i = start; i < end; i++) {
+                int pc = p.byteAt(i);
+                if (pc == '%') {
+                    i++;
+                    if (matchClass(c, p.byteAt(i))) {
+                        in = true;
+                        break;
+                    }
+                } else if (i + 2 < end && p.byteAt(i + 1) == '-') {
+                    if (pc <= c && c <= p.byteAt(i + 2)) {
+                        in = true;
+                        break;
+                    }
+                    i += 2;
+                } else if (pc == c) {
+                    in = true;
+                    break;
+                }
+            }
+            if (in == sig) {
+                set[c >>> 6] |= 1L << c;
+            }
+        }
+        return set;
+    }
+
+    /**
+     * 字节 c 是否属于字符类 %cl（按 C 语言环境，lua-5.3.4/src/lstrlib.c#match_class()）
+     *
+     * @param c
+     * @param cl
+     * @return
+     */
+    private static boolean matchClass(int c, int cl) {
+        boolean res;
+        switch (cl | 0x20) {
+            case 'a':
+                res = isAlpha(c);
+                break;
+            case 'c':
+                res = c < 32 || c == 127;
+                break;
+            case 'd':
+                res = c >= '0' && c <= '9';
+                break;
+            case 'g':
+                res = c > 32 && c < 127;
+                break;
+            case 'l':
+                res = c >= 'a' && c <= 'z';
+                break;
+            case 'p':
+                res = c > 32 && c < 127 && !isAlpha(c) && !(c >= '0' && c <= '9');
+                break;
+            case 's':
+                res = c == ' ' || (c >= '\t' && c <= '\r');
+                break;
+            case 'u':
+                res = c >= 'A' && c <= 'Z';
+                break;
+            case 'w':
+                res = isAlpha(c) || (c >= '0' && c <= '9');
+                break;
+            case 'x':
+                res = (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+                break;
+            default:
+                return cl == c;
+        }
+        // 大写的类表示补集
+        return cl >= 'A' && cl <= 'Z' ? !res : res;
+    }
+
+    private static boolean isAlpha(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+}
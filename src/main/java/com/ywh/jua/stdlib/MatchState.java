@@ -0,0 +1,328 @@
+package com.ywh.jua.stdlib;
+
+import com.ywh.jua.api.LuaString;
+
+import static com.ywh.jua.stdlib.LuaPattern.*;
+
+/**
+ * 模式匹配的状态（lua-5.3.4/src/lstrlib.c#MatchState）：在目标串上执行编译后的模式，记录捕获的位置。
+ *
+ * 匹配按回溯进行，与 C 实现相同；匹配和捕获只记录位置和长度，需要时才取子串（与目标串共享字节数组）。
+ * 同一个状态可以在目标串上反复查找（gmatch、gsub），扫描很大的目标串时除了匹配结果不再分配内存。
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+final class MatchState {
+
+    /**
+     * 捕获尚未结束
+     */
+    static final int CAP_UNFINISHED = -1;
+
+    /**
+     * 位置捕获
+     */
+    static final int CAP_POSITION = -2;
+
+    /**
+     * 递归的最大深度（lua-5.3.4/src/lstrlib.c#MAXCCALLS）
+     */
+    private static final int MAXCCALLS = 200;
+
+    final LuaString src;
+
+    private final int srcLen;
+
+    private final LuaPattern pattern;
+
+    /**
+     * 已开始的捕获数
+     */
+    int level;
+
+    final int[] captureInit;
+
+    final int[] captureLen;
+
+    /**
+     * 最近一次 {@link #find(int, int)} 找到的匹配的结束位置
+     */
+    int end;
+
+    private int matchDepth;
+
+    MatchState(LuaString src, LuaPattern pattern) {
+        this.src = src;
+        this.srcLen = src.length();
+        this.pattern = pattern;
+        this.captureInit = new int[pattern.captures];
+        this.captureLen = new int[pattern.captures];
+    }
+
+    /**
+     * 从 s 开始查找第一个匹配，返回匹配的起始位置（结束位置记在 end 中），找不到时返回 -1；
+     * 结束位置等于 lastMatch 的匹配（紧跟在上一个匹配之后的空匹配）不算。
+     *
+     * @param s
+     * @param lastMatch
+     * @return
+     */
+    int find(int s, int lastMatch) {
+        int first = pattern.firstByte;
+        long[] set = pattern.firstSet;
+        for (; s <= srcLen; s++) {
+            if (first >= 0) {
+                s = src.indexOf(first, s);
+                if (s < 0) {
+                    return -1;
+                }
+            } else if (set != null) {
+                while (s < srcLen && !inSet(set, src.byteAt(s))) {
+                    s++;
+                }
+                if (s == srcLen) {
+                    return -1;
+                }
+            }
+            int e = match(s);
+            if (e >= 0 && e != lastMatch) {
+                end = e;
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从 s 开始匹配整个模式，成功时返回匹配结束的位置，否则返回 -1
+     *
+     * @param s
+     * @return
+     */
+    int match(int s) {
+        level = 0;
+        matchDepth = MAXCCALLS;
+        return match(s, 0);
+    }
+
+    /**
+     * 从 s 开始匹配第 p 项及之后的项
+     *
+     * @param s
+     * @param p
+     * @return
+     */
+    private int match(int s, int p) {
+        if (matchDepth-- == 0) {
+            throw new RuntimeException("pattern too complex");
+        }
+        int r = doMatch(s, p);
+        matchDepth++;
+        return r;
+    }
+
+    private int doMatch(int s, int p) {
+        LuaPattern pat = pattern;
+        while (p < pat.size) {
+            switch (pat.kinds[p]) {
+                case OPEN:
+                    return startCapture(s, p + 1, CAP_UNFINISHED);
+                case POSITION:
+                    return startCapture(s, p + 1, CAP_POSITION);
+                case CLOSE:
+                    return endCapture(s, p + 1);
+                case END:
+                    return s == srcLen ? s : -1;
+                case BALANCE:
+                    s = matchBalance(s, pat.args[p]);
+                    if (s < 0) {
+                        return -1;
+                    }
+                    p++;
+                    continue;
+                case FRONTIER: {
+                    long[] set = pat.sets[p];
+                    int prev = s == 0 ? 0 : src.byteAt(s - 1);
+                    int cur = s < srcLen ? src.byteAt(s) : 0;
+                    if (inSet(set, prev) || !inSet(set, cur)) {
+                        return -1;
+                    }
+                    p++;
+                    continue;
+                }
+                case BACKREF:
+                    s = matchCapture(s, pat.args[p]);
+                    if (s < 0) {
+                        return -1;
+                    }
+                    p++;
+                    continue;
+                default:
+                    switch (pat.quants[p]) {
+                        case ONE:
+                            if (s < srcLen && single(s, p)) {
+                                s++;
+                                p++;
+                                continue;
+                            }
+                            return -1;
+                        case OPT:
+                            if (s < srcLen && single(s, p)) {
+                                int r = match(s + 1, p + 1);
+                                if (r >= 0) {
+                                    return r;
+                                }
+                            }
+                            p++;
+                            continue;
+                        case PLUS:
+                            return s < srcLen && single(s, p) ? maxExpand(s + 1, p) : -1;
+                        case STAR:
+                            return maxExpand(s, p);
+                        default:
+                            return minExpand(s, p);
+                    }
+            }
+        }
+        return s;
+    }
+
+    /**
+     * 目标串第 s 个字节是否匹配第 p 项的单字符类
+     *
+     * @param s
+     * @param p
+     * @return
+     */
+    private boolean single(int s, int p) {
+        int c = src.byteAt(s);
+        long[] set = pattern.sets[p];
+        return set == null ? c == pattern.args[p] : inSet(set, c);
+    }
+
+    private static boolean inSet(long[] set, int c) {
+        return (set[c >>> 6] & 1L << c) != 0;
+    }
+
+    /**
+     * 贪婪重复：先尽量多地匹配，再逐个退回
+     *
+     * @param s
+     * @param p
+     * @return
+     */
+    private int maxExpand(int s, int p) {
+        int i = 0;
+        while (s + i < srcLen && single(s + i, p)) {
+            i++;
+        }
+        while (i >= 0) {
+            int r = match(s + i, p + 1);
+            if (r >= 0) {
+                return r;
+            }
+            i--;
+        }
+        return -1;
+    }
+
+    /**
+     * 非贪婪重复：先尝试匹配后面的项，失败时再多匹配一个字节
+     *
+     * @param s
+     * @param p
+     * @return
+     */
+    private int minExpand(int s, int p) {
+        for (;;) {
+            int r = match(s, p + 1);
+            if (r >= 0) {
+                return r;
+            }
+            if (s < srcLen && single(s, p)) {
+                s++;
+            } else {
+                return -1;
+            }
+        }
+    }
+
+    private int startCapture(int s, int p, int what) {
+        captureInit[level] = s;
+        captureLen[level] = what;
+        level++;
+        int r = match(s, p);
+        if (r < 0) {
+            level--;
+        }
+        return r;
+    }
+
+    private int endCapture(int s, int p) {
+        int l = captureToClose();
+        captureLen[l] = s - captureInit[l];
+        int r = match(s, p);
+        if (r < 0) {
+            captureLen[l] = CAP_UNFINISHED;
+        }
+        return r;
+    }
+
+    private int captureToClose() {
+        for (int l = level - 1; l >= 0; l--) {
+            if (captureLen[l] == CAP_UNFINISHED) {
+                return l;
+            }
+        }
+        throw new RuntimeException("invalid pattern capture");
+    }
+
+    /**
+     * %bxy：从 s 开始匹配以 x 开始、以 y 结束的平衡串
+     *
+     * @param s
+     * @param xy
+     * @return
+     */
+    private int matchBalance(int s, int xy) {
+        int x = xy >>> 8, y = xy & 0xFF;
+        if (s >= srcLen || src.byteAt(s) != x) {
+            return -1;
+        }
+        int cont = 1;
+        for (int i = s + 1; i < srcLen; i++) {
+            int c = src.byteAt(i);
+            if (c == y) {
+                if (--cont == 0) {
+                    return i + 1;
+                }
+            } else if (c == x) {
+                cont++;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * %1 ~ %9：匹配与第 l 个捕获相同的内容
+     *
+     * @param s
+     * @param l
+     * @return
+     */
+    private int matchCapture(int s, int l) {
+        int len = captureLen[l];
+        if (len < 0 || srcLen - s < len) {
+            return -1;
+        }
+        int init = captureInit[l];
+        for (int i = 0; i < len; i++) {
+            if (src.byteAt(init + i) != src.byteAt(s + i)) {
+                return -1;
+            }
+        }
+        return s + len;
+    }
+
+}
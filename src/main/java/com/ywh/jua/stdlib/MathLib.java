@@ -62,9 +62,9 @@ public class MathLib {
         ls.setField(-2, "pi");
         ls.pushNumber(Double.POSITIVE_INFINITY);
         ls.setField(-2, "huge");
-        ls.pushInteger(Integer.MAX_VALUE);
+        ls.pushInteger(Long.MAX_VALUE);
         ls.setField(-2, "maxinteger");
-        ls.pushInteger(Integer.MIN_VALUE);
+        ls.pushInteger(Long.MIN_VALUE);
         ls.setField(-2, "mininteger");
         return 1;
     }
@@ -2,6 +2,9 @@ package com.ywh.jua.stdlib;
 
 import com.ywh.jua.api.JavaFunction;
 import com.ywh.jua.api.LuaState;
+import com.ywh.jua.api.LuaString;
+import com.ywh.jua.api.LuaType;
+import com.ywh.jua.state.LuaStateImpl;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -10,6 +13,8 @@ import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static com.ywh.jua.api.LuaType.*;
+
 /**
  * 字符串库
  *
@@ -85,7 +90,7 @@ public class StringLib {
      * @return
      */
     private static int strLen(LuaState ls) {
-        String s = ls.checkString(1);
+        LuaString s = ls.checkLuaString(1);
         ls.pushInteger(s.length());
         return 1;
     }
@@ -99,19 +104,29 @@ public class StringLib {
      * @return
      */
     private static int strRep(LuaState ls) {
-        String s = ls.checkString(1);
+        LuaString s = ls.checkLuaString(1);
         long n = ls.checkInteger(2);
-        String sep = ls.optString(3, "");
+        LuaString sep = ls.isNoneOrNil(3) ? LuaString.EMPTY : ls.checkLuaString(3);
         if (n <= 0) {
-            ls.pushString("");
+            ls.pushLuaString(LuaString.EMPTY);
         } else if (n == 1) {
-            ls.pushString(s);
+            ls.pushLuaString(s);
         } else {
-            String[] arr = new String[(int) n];
-            for (int i = 0; i < (int) n; i++) {
-                arr[i] = s;
+            long total = s.length() * n + sep.length() * (n - 1);
+            if (total >= Integer.MAX_VALUE) {
+                return ls.error2("resulting string too large");
+            }
+            byte[] buf = new byte[(int) total];
+            int pos = 0;
+            for (long i = 0; i < n; i++) {
+                if (i > 0) {
+                    sep.getBytes(0, sep.length(), buf, pos);
+                    pos += sep.length();
+                }
+                s.getBytes(0, s.length(), buf, pos);
+                pos += s.length();
             }
-            ls.pushString(String.join(sep, arr));
+            ls.pushLuaString(LuaString.valueOf(buf));
         }
         return 1;
     }
@@ -125,10 +140,13 @@ public class StringLib {
      * @return
      */
     private static int strReverse(LuaState ls) {
-        String s = ls.checkString(1);
-        if (s.length() > 1) {
-            ls.pushString(new StringBuffer(s).reverse().toString());
+        LuaString s = ls.checkLuaString(1);
+        int n = s.length();
+        byte[] buf = new byte[n];
+        for (int i = 0; i < n; i++) {
+            buf[i] = (byte) s.byteAt(n - 1 - i);
         }
+        ls.pushLuaString(LuaString.valueOf(buf));
         return 1;
     }
 
@@ -141,8 +159,13 @@ public class StringLib {
      * @return
      */
     private static int strLower(LuaState ls) {
-        String s = ls.checkString(1);
-        ls.pushString(s.toLowerCase());
+        LuaString s = ls.checkLuaString(1);
+        byte[] buf = new byte[s.length()];
+        for (int i = 0; i < buf.length; i++) {
+            int c = s.byteAt(i);
+            buf[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        ls.pushLuaString(LuaString.valueOf(buf));
         return 1;
     }
 
@@ -155,8 +178,13 @@ public class StringLib {
      * @return
      */
     private static int strUpper(LuaState ls) {
-        String s = ls.checkString(1);
-        ls.pushString(s.toUpperCase());
+        LuaString s = ls.checkLuaString(1);
+        byte[] buf = new byte[s.length()];
+        for (int i = 0; i < buf.length; i++) {
+            int c = s.byteAt(i);
+            buf[i] = (byte) (c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c);
+        }
+        ls.pushLuaString(LuaString.valueOf(buf));
         return 1;
     }
 
@@ -169,19 +197,21 @@ public class StringLib {
      * @return
      */
     private static int strSub(LuaState ls) {
-        String s = ls.checkString(1);
-        long i = posRelat(ls.checkInteger(2), s.length());
-        long j = posRelat(ls.optInteger(3, -1), s.length());
+        LuaString s = ls.checkLuaString(1);
+        long l = s.length();
+        long i = posRelat(ls.checkInteger(2), l);
+        long j = posRelat(ls.optInteger(3, -1), l);
         if (i < 1) {
             i = 1;
         }
-        if (j > s.length()) {
-            j = s.length();
+        if (j > l) {
+            j = l;
         }
         if (i <= j) {
-            ls.pushString(s.substring((int) i, (int) j));
+            // 子串与原串共享字节数组，不复制
+            ls.pushLuaString(s.substring((int) i - 1, (int) j));
         } else {
-            ls.pushString("");
+            ls.pushLuaString(LuaString.EMPTY);
         }
         return 1;
     }
@@ -195,14 +225,15 @@ public class StringLib {
      * @return
      */
     private static int strByte(LuaState ls) {
-        String s = ls.checkString(1);
-        long i = posRelat(ls.optInteger(2, 1), s.length());
-        long j = posRelat(ls.optInteger(3, i), s.length());
+        LuaString s = ls.checkLuaString(1);
+        long l = s.length();
+        long i = posRelat(ls.optInteger(2, 1), l);
+        long j = posRelat(ls.optInteger(3, i), l);
         if (i < 1) {
             i = 1;
         }
-        if (j > s.length()) {
-            j = s.length();
+        if (j > l) {
+            j = l;
         }
         if (i > j) {
             return 0;
@@ -210,7 +241,7 @@ public class StringLib {
         long n = j - i + 1;
         ls.checkStack2((int) n, "string slice too long");
         for (int k = 0; k < n; k++) {
-            ls.pushInteger(s.charAt((int) (i + k - 1)) - '0');
+            ls.pushInteger(s.byteAt((int) (i + k - 1)));
         }
         return (int) n;
     }
@@ -225,13 +256,13 @@ public class StringLib {
      */
     private static int strChar(LuaState ls) {
         int nArgs = ls.getTop();
-        String[] s = new String[nArgs];
+        byte[] buf = new byte[nArgs];
         for (int i = 1; i <= nArgs; i++) {
             long c = ls.checkInteger(i);
-            ls.argCheck(c <= (long) Integer.MAX_VALUE, i, "value out of range");
-            s[i - 1] = String.valueOf(c);
+            ls.argCheck(c >= 0 && c <= 0xFF, i, "value out of range");
+            buf[i - 1] = (byte) c;
         }
-        ls.pushString(String.join("", s));
+        ls.pushLuaString(LuaString.valueOf(buf));
         return 1;
     }
 
@@ -322,13 +353,37 @@ public class StringLib {
     /**
      * string.find (s, pattern [, init [, plain]])
      * http://www.lua.org/manual/5.3/manual.html#pdf-string.find
+     * lua-5.3.4/src/lstrlib.c#str_find()
      *
      * @param ls
      * @return
      */
     private static int strFind(LuaState ls) {
-        String s = ls.checkString(1);
-        String pattern = ls.checkString(2);
+        return strFindAux(ls, true);
+    }
+
+    /**
+     * string.match (s, pattern [, init])
+     * http://www.lua.org/manual/5.3/manual.html#pdf-string.match
+     * lua-5.3.4/src/lstrlib.c#str_match()
+     *
+     * @param ls
+     * @return
+     */
+    private static int strMatch(LuaState ls) {
+        return strFindAux(ls, false);
+    }
+
+    /**
+     * find 和 match 的共同部分（lua-5.3.4/src/lstrlib.c#str_find_aux()）
+     *
+     * @param ls
+     * @param find
+     * @return
+     */
+    private static int strFindAux(LuaState ls, boolean find) {
+        LuaString s = ls.checkLuaString(1);
+        LuaString p = ls.checkLuaString(2);
         long init = posRelat(ls.optInteger(3, 1), s.length());
         if (init < 1) {
             init = 1;
@@ -336,97 +391,295 @@ public class StringLib {
             ls.pushNil();
             return 1;
         }
-        boolean plain = ls.toBoolean(4);
-        int start, end;
-        String tail = s;
-        if (init > 1) {
-            tail = s.substring((int) init - 1);
-        }
-
-        if (plain) {
-            start = tail.indexOf(pattern);
-            end = start + pattern.length() - 1;
+        if (find && (ls.toBoolean(4) || noSpecials(p))) {
+            // 按字节查找，不复制
+            int start = s.indexOf(p, (int) init - 1);
+            if (start >= 0) {
+                ls.pushInteger(start + 1);
+                ls.pushInteger(start + p.length());
+                return 2;
+            }
         } else {
-            Pattern re = Pattern.compile(pattern);
-            Matcher matcher = re.matcher(tail);
-            if (!matcher.find()) {
-                start = end = -1;
+            LuaPattern pattern = LuaPattern.of(p);
+            MatchState ms = new MatchState(s, pattern);
+            int s1 = (int) init - 1, e;
+            if (pattern.anchor) {
+                e = ms.match(s1);
             } else {
-                start = matcher.start();
-                // TODO ?
-                end = start + tail.length() - 1 - 1;
+                s1 = ms.find(s1, -1);
+                e = s1 < 0 ? -1 : ms.end;
+            }
+            if (e >= 0) {
+                if (find) {
+                    ls.pushInteger(s1 + 1);
+                    ls.pushInteger(e);
+                    return pushCaptures(ls, ms, -1, -1) + 2;
+                }
+                return pushCaptures(ls, ms, s1, e);
             }
         }
-        if (start >= 0) {
-            start += s.length() - tail.length() + 1;
-            end += s.length() - tail.length() + 1;
-        }
-        if (start < 0) {
-            ls.pushNil();
-            return 1;
-        }
-        ls.pushInteger(start);
-        ls.pushInteger(end);
+        ls.pushNil();
         return 1;
     }
 
     /**
-     * string.match (s, pattern [, init])
-     * http://www.lua.org/manual/5.3/manual.html#pdf-string.match
+     * string.gmatch (s, pattern)
+     * http://www.lua.org/manual/5.3/manual.html#pdf-string.gmatch
+     * lua-5.3.4/src/lstrlib.c#gmatch()
      *
      * @param ls
      * @return
      */
-    private static int strMatch(LuaState ls) {
-        String s = ls.checkString(1);
-        String pattern = ls.checkString(2);
-        long init = posRelat(ls.optInteger(3, 1), s.length());
-        if (init < 1) {
-            init = 1;
-        } else if (init > s.length() + 1) {
-            ls.pushNil();
-            return 1;
+    private static int strGmatch(LuaState ls) {
+        LuaString s = ls.checkLuaString(1);
+        LuaString p = ls.checkLuaString(2);
+        // gmatch 中开头的 ^ 不是锚点，按普通字符匹配
+        if (p.length() > 0 && p.byteAt(0) == '^') {
+            byte[] b = new byte[p.length() + 1];
+            b[0] = '%';
+            p.getBytes(0, p.length(), b, 1);
+            p = LuaString.valueOf(b);
         }
-        int[] captures = match(s, pattern, (int) init);
-        if (captures == null) {
-            ls.pushNil();
-            return 1;
-        } else {
-            for (int i = 0; i < captures.length; i += 2) {
-                String capture = s.substring(captures[i], captures[i + 1]);
-                ls.pushString(capture);
+        ls.pushJavaFunction(new GMatch(new MatchState(s, LuaPattern.of(p))));
+        return 1;
+    }
+
+    /**
+     * gmatch 返回的迭代器，依次返回下一次匹配的捕获（lua-5.3.4/src/lstrlib.c#gmatch_aux()）
+     */
+    private static final class GMatch implements JavaFunction {
+
+        private final MatchState ms;
+
+        /**
+         * 下一次从哪里开始匹配
+         */
+        private int src;
+
+        /**
+         * 上一次匹配的结束位置（不接受在同一位置结束的空匹配）
+         */
+        private int lastMatch = -1;
+
+        GMatch(MatchState ms) {
+            this.ms = ms;
+        }
+
+        @Override
+        public int invoke(LuaStateImpl ls) {
+            int start = src <= ms.src.length() ? ms.find(src, lastMatch) : -1;
+            if (start < 0) {
+                src = ms.src.length() + 1;
+                return 0;
             }
-            return captures.length / 2;
+            src = lastMatch = ms.end;
+            return pushCaptures(ls, ms, start, ms.end);
         }
     }
 
     /**
      * string.gsub (s, pattern, repl [, n])
      * http://www.lua.org/manual/5.3/manual.html#pdf-string.gsub
+     * lua-5.3.4/src/lstrlib.c#str_gsub()
      *
      * @param ls
      * @return
      */
     private static int strGsub(LuaState ls) {
-        String s = ls.checkString(1);
-        String pattern = ls.checkString(2);
-        String repl = ls.checkString(3);
-        long n = ls.optInteger(4, -1);
-        // TODO
+        LuaString src = ls.checkLuaString(1);
+        LuaString p = ls.checkLuaString(2);
+        LuaType tr = ls.type(3);
+        long maxS = ls.optInteger(4, src.length() + 1);
+        ls.argCheck(tr == LUA_TNUMBER || tr == LUA_TSTRING || tr == LUA_TFUNCTION || tr == LUA_TTABLE, 3,
+            "string/function/table expected");
+        LuaPattern pattern = LuaPattern.of(p);
+        MatchState ms = new MatchState(src, pattern);
+        // 第一次匹配时才分配缓冲区；两次匹配之间没有匹配的部分整段复制
+        LuaBuffer b = null;
+        int copied = 0, lastMatch = -1;
+        long n = 0;
+        while (n < maxS) {
+            int s, e;
+            if (pattern.anchor) {
+                s = 0;
+                e = ms.match(0);
+            } else {
+                s = ms.find(lastMatch < 0 ? 0 : lastMatch, lastMatch);
+                e = s < 0 ? -1 : ms.end;
+            }
+            if (e < 0) {
+                break;
+            }
+            if (b == null) {
+                b = new LuaBuffer(src.length());
+            }
+            b.append(src, copied, s);
+            n++;
+            addValue(ls, ms, b, s, e, tr);
+            copied = lastMatch = e;
+            if (pattern.anchor) {
+                break;
+            }
+        }
+        if (b == null) {
+            // 没有替换：返回原来的字符串
+            ls.pushLuaString(src);
+        } else {
+            b.append(src, copied, src.length());
+            ls.pushLuaString(b.toLuaString());
+        }
+        ls.pushInteger(n);
         return 2;
     }
 
     /**
+     * 把匹配 [s, e) 的替换结果追加到缓冲区（lua-5.3.4/src/lstrlib.c#add_value()）
+     *
+     * @param ls
+     * @param ms
+     * @param b
+     * @param s
+     * @param e
+     * @param tr
+     */
+    private static void addValue(LuaState ls, MatchState ms, LuaBuffer b, int s, int e, LuaType tr) {
+        switch (tr) {
+            case LUA_TFUNCTION:
+                ls.pushValue(3);
+                ls.call(pushCaptures(ls, ms, s, e), 1);
+                break;
+            case LUA_TTABLE:
+                pushOneCapture(ls, ms, 0, s, e);
+                ls.getTable(3);
+                break;
+            default:
+                addString(ls, ms, b, s, e);
+                return;
+        }
+        if (!ls.toBoolean(-1)) {
+            // nil 或 false：保留原来的内容
+            b.append(ms.src, s, e);
+        } else if (!ls.isString(-1)) {
+            ls.error2("invalid replacement value (a %s)", ls.typeName2(-1));
+        } else {
+            b.append(ls.toLuaString(-1));
+        }
+        ls.pop(1);
+    }
+
+    /**
+     * 按替换串追加，其中 %0 ~ %9 替换为对应的捕获，%% 表示 %（lua-5.3.4/src/lstrlib.c#add_s()）
+     *
+     * @param ls
+     * @param ms
+     * @param b
+     * @param s
+     * @param e
+     */
+    private static void addString(LuaState ls, MatchState ms, LuaBuffer b, int s, int e) {
+        LuaString news = ls.toLuaString(3);
+        int l = news.length();
+        for (int i = 0; i < l; i++) {
+            int c = news.byteAt(i);
+            if (c != '%') {
+                b.appendByte(c);
+                continue;
+            }
+            c = ++i < l ? news.byteAt(i) : 0;
+            if (c < '0' || c > '9') {
+                if (c != '%') {
+                    ls.error2("invalid use of '%%' in replacement string");
+                }
+                b.appendByte(c);
+            } else if (c == '0') {
+                b.append(ms.src, s, e);
+            } else {
+                int k = checkCapture(ls, ms, c - '1', s);
+                if (k < 0) {
+                    b.append(ms.src, s, e);
+                } else if (ms.captureLen[k] == MatchState.CAP_POSITION) {
+                    b.append(ms.captureInit[k] + 1);
+                } else {
+                    b.append(ms.src, ms.captureInit[k], ms.captureInit[k] + ms.captureLen[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 压入所有捕获，没有捕获且 s >= 0 时压入整个匹配 [s, e)（lua-5.3.4/src/lstrlib.c#push_captures()）
      *
      * @param ls
+     * @param ms
+     * @param s
+     * @param e
      * @return
      */
-    private static int strGmatch(LuaState ls) {
-        String s = ls.checkString(1);
-        String pattern = ls.checkString(2);
+    private static int pushCaptures(LuaState ls, MatchState ms, int s, int e) {
+        int nLevels = ms.level == 0 && s >= 0 ? 1 : ms.level;
+        ls.checkStack2(nLevels, "too many captures");
+        for (int i = 0; i < nLevels; i++) {
+            pushOneCapture(ls, ms, i, s, e);
+        }
+        return nLevels;
+    }
 
-        // TODO
-        return 1;
+    /**
+     * 压入第 i 个捕获（lua-5.3.4/src/lstrlib.c#push_onecapture()）
+     *
+     * @param ls
+     * @param ms
+     * @param i
+     * @param s
+     * @param e
+     */
+    private static void pushOneCapture(LuaState ls, MatchState ms, int i, int s, int e) {
+        int k = checkCapture(ls, ms, i, s);
+        if (k < 0) {
+            ls.pushLuaString(ms.src.substring(s, e));
+        } else if (ms.captureLen[k] == MatchState.CAP_POSITION) {
+            ls.pushInteger(ms.captureInit[k] + 1);
+        } else {
+            // 子串与目标串共享字节数组，不复制
+            ls.pushLuaString(ms.src.substring(ms.captureInit[k], ms.captureInit[k] + ms.captureLen[k]));
+        }
+    }
+
+    /**
+     * 检查第 i 个捕获：存在时返回 i，没有捕获时的第 0 个捕获表示整个匹配，返回 -1
+     *
+     * @param ls
+     * @param ms
+     * @param i
+     * @param s
+     * @return
+     */
+    private static int checkCapture(LuaState ls, MatchState ms, int i, int s) {
+        if (i >= ms.level) {
+            if (i != 0 || s < 0) {
+                ls.error2("invalid capture index %%%d", i + 1);
+            }
+            return -1;
+        }
+        if (ms.captureLen[i] == MatchState.CAP_UNFINISHED) {
+            ls.error2("unfinished capture");
+        }
+        return i;
+    }
+
+    /**
+     * 模式中是否没有特殊字符（lua-5.3.4/src/lstrlib.c#nospecials()）
+     *
+     * @param p
+     * @return
+     */
+    private static boolean noSpecials(LuaString p) {
+        for (int i = 0, n = p.length(); i < n; i++) {
+            if ("^$*+?.([%-".indexOf(p.byteAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -446,19 +699,6 @@ public class StringLib {
         }
     }
 
-    /**
-     *
-     * @param s
-     * @param pattern
-     * @param init
-     * @return
-     */
-    private static int[] match(String s, String pattern, int init) {
-
-        // TODO
-        return null;
-    }
-
     /**
      * @param tag
      * @param ls
@@ -28,6 +28,107 @@ public class Instruction {
      */
     public static final int MAXARG_S_BX = MAXARG_BX >> 1;
 
+    /**
+     * 操作码表（{@link OpCode#values()} 每次调用都会复制数组，因此缓存起来）
+     */
+    private static final OpCode[] OP_CODES = OpCode.values();
+
+    // ========== 操作码（与 OpCode 的序数一致，可用于 switch 的 case 标签） ==========
+
+    public static final int OP_MOVE = 0;
+
+    public static final int OP_LOADK = 1;
+
+    public static final int OP_LOADKX = 2;
+
+    public static final int OP_LOADBOOL = 3;
+
+    public static final int OP_LOADNIL = 4;
+
+    public static final int OP_GETUPVAL = 5;
+
+    public static final int OP_GETTABUP = 6;
+
+    public static final int OP_GETTABLE = 7;
+
+    public static final int OP_SETTABUP = 8;
+
+    public static final int OP_SETUPVAL = 9;
+
+    public static final int OP_SETTABLE = 10;
+
+    public static final int OP_NEWTABLE = 11;
+
+    public static final int OP_SELF = 12;
+
+    public static final int OP_ADD = 13;
+
+    public static final int OP_SUB = 14;
+
+    public static final int OP_MUL = 15;
+
+    public static final int OP_MOD = 16;
+
+    public static final int OP_POW = 17;
+
+    public static final int OP_DIV = 18;
+
+    public static final int OP_IDIV = 19;
+
+    public static final int OP_BAND = 20;
+
+    public static final int OP_BOR = 21;
+
+    public static final int OP_BXOR = 22;
+
+    public static final int OP_SHL = 23;
+
+    public static final int OP_SHR = 24;
+
+    public static final int OP_UNM = 25;
+
+    public static final int OP_BNOT = 26;
+
+    public static final int OP_NOT = 27;
+
+    public static final int OP_LEN = 28;
+
+    public static final int OP_CONCAT = 29;
+
+    public static final int OP_JMP = 30;
+
+    public static final int OP_EQ = 31;
+
+    public static final int OP_LT = 32;
+
+    public static final int OP_LE = 33;
+
+    public static final int OP_TEST = 34;
+
+    public static final int OP_TESTSET = 35;
+
+    public static final int OP_CALL = 36;
+
+    public static final int OP_TAILCALL = 37;
+
+    public static final int OP_RETURN = 38;
+
+    public static final int OP_FORLOOP = 39;
+
+    public static final int OP_FORPREP = 40;
+
+    public static final int OP_TFORCALL = 41;
+
+    public static final int OP_TFORLOOP = 42;
+
+    public static final int OP_SETLIST = 43;
+
+    public static final int OP_CLOSURE = 44;
+
+    public static final int OP_VARARG = 45;
+
+    public static final int OP_EXTRAARG = 46;
+
     /**
      * 取操作码
      *
@@ -35,7 +136,7 @@ public class Instruction {
      * @return
      */
     public static OpCode getOpCode(int i) {
-        return OpCode.values()[i & 0x3F];
+        return OP_CODES[i & 0x3F];
     }
 
     /**
@@ -0,0 +1,75 @@
+package com.ywh.jua.benchmark;
+
+import com.ywh.jua.api.LuaState;
+import com.ywh.jua.state.LuaStateImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解释器执行方式对比，测量的是寄存器直接访问与预解码指令表 + switch 分派两项改动的合计效果，不能单独归于分派方式：
+ *      interpreter：Interpreter 直接读写调用帧的寄存器，按预解码的操作码序数 switch 分派（默认）；
+ *      api：逐条取指、解码，经由 OpAction 函数式接口调用 Instructions 中的指令实现，指令通过 LuaVM API 压栈、弹栈操作寄存器
+ *      （-Djua.vm.api=true）。
+ *
+ * 运行：
+ *      mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *      java -cp target/test-classes:target/classes:$(cat target/cp.txt) org.openjdk.jmh.Main InterpreterBenchmark
+ *
+ * @author ywh
+ * @since 2026/10/17
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+public class InterpreterBenchmark {
+
+    private static final String SCRIPT = ""
+        + "function fib(n) if n < 2 then return n end return fib(n - 1) + fib(n - 2) end\n"
+        + "function loop(n) local s = 0 for i = 1, n do s = s + i % 7 * 2 end return s end\n";
+
+    private LuaState ls;
+
+    @Setup
+    public void setup() {
+        ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.doString(SCRIPT);
+    }
+
+    @Benchmark
+    @Fork(1)
+    public long fibInterpreter() {
+        return call("fib", 20);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djua.vm.api=true")
+    public long fibApi() {
+        return call("fib", 20);
+    }
+
+    @Benchmark
+    @Fork(1)
+    public long loopInterpreter() {
+        return call("loop", 100_000);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Djua.vm.api=true")
+    public long loopApi() {
+        return call("loop", 100_000);
+    }
+
+    private long call(String name, long n) {
+        ls.getGlobal(name);
+        ls.pushInteger(n);
+        ls.call(1, 1);
+        long r = ls.toInteger(-1);
+        ls.pop(1);
+        return r;
+    }
+
+}
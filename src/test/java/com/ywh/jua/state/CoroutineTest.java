@@ -0,0 +1,128 @@
+package com.ywh.jua.state;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static com.ywh.jua.state.InterpreterTest.eval;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author ywh
+ * @since 2026/10/17
+ */
+public class CoroutineTest {
+
+    @Test
+    public void resumeAndYield() {
+        assertEquals("3 20 done 6 dead", eval("local co = coroutine.create(function(a, b) "
+            + "local x, y = coroutine.yield(a + b) local z = coroutine.yield(x * y) return 'done', z end) "
+            + "local _, r1 = coroutine.resume(co, 1, 2) local _, r2 = coroutine.resume(co, 4, 5) "
+            + "local _, r3, r4 = coroutine.resume(co, 6) "
+            + "return r1 .. ' ' .. r2 .. ' ' .. r3 .. ' ' .. r4 .. ' ' .. coroutine.status(co)"));
+    }
+
+    @Test
+    public void wrap() {
+        assertEquals(5050L, eval("local gen = coroutine.wrap(function() for i = 1, 100 do coroutine.yield(i) end end) "
+            + "local s = 0 for i = 1, 100 do s = s + gen() end return s"));
+        assertEquals("false oops", eval("local ok, e = pcall(coroutine.wrap(function() error('oops') end)) "
+            + "return tostring(ok) .. ' ' .. e"));
+    }
+
+    @Test
+    public void status() {
+        assertEquals("suspended running dead cannot resume dead coroutine", eval("local co "
+            + "co = coroutine.create(function() return coroutine.status(co) end) local s1 = coroutine.status(co) "
+            + "local _, s2 = coroutine.resume(co) local _, e = coroutine.resume(co) "
+            + "return s1 .. ' ' .. s2 .. ' ' .. coroutine.status(co) .. ' ' .. e"));
+        // 主线程：running 返回 (thread, true)，不可让出
+        assertEquals("thread true false false", eval("local co, main = coroutine.running() "
+            + "local _, inner = coroutine.wrap(function() return coroutine.running() end)() "
+            + "return type(co) .. ' ' .. tostring(main) .. ' ' .. tostring(coroutine.isyieldable()) .. ' ' .. tostring(inner)"));
+        assertEquals("attempt to yield from outside a coroutine", eval("return select(2, pcall(coroutine.yield, 1))"));
+    }
+
+    @Test
+    public void yieldFromNestedCall() {
+        assertEquals("1,2,3,4,", eval("local function walk(t) for _, v in ipairs(t) do "
+            + "if type(v) == 'table' then walk(v) else coroutine.yield(v) end end end "
+            + "local s = '' for v in coroutine.wrap(function() walk({1, {2, {3}}, 4}) end) do s = s .. v .. ',' end "
+            + "return s"));
+        assertEquals(20000L, eval("local cos = {} for i = 1, 10000 do "
+            + "cos[i] = coroutine.create(function(x) while true do x = coroutine.yield(x + 1) end end) end "
+            + "local s = 0 for r = 1, 2 do for i = 1, 10000 do local _, v = coroutine.resume(cos[i], 0) s = s + v end end "
+            + "return s"));
+    }
+
+    @Test
+    public void yieldAcrossPcall() {
+        // 两种模式下都可以跨越 pcall 挂起，恢复后的错误仍由 pcall 捕获
+        assertEquals("1 true x", eval("local f = coroutine.wrap(function() return pcall(coroutine.yield, 1) end) "
+            + "local a = f() local ok, b = f('x') return a .. ' ' .. tostring(ok) .. ' ' .. b"));
+        assertEquals("y|false bad 1|end|dead", eval("local co = coroutine.create(function() "
+            + "local ok, e = pcall(function() local v = coroutine.yield('y') error('bad ' .. v, 0) end) "
+            + "coroutine.yield(tostring(ok) .. ' ' .. e) return 'end' end) "
+            + "local _, a = coroutine.resume(co) local _, b = coroutine.resume(co, 1) local _, c = coroutine.resume(co) "
+            + "return a .. '|' .. b .. '|' .. c .. '|' .. coroutine.status(co)"));
+        assertEquals(66L, eval("local gen = coroutine.wrap(function() local s = 0 for i = 1, 3 do "
+            + "local ok, ok2, v = pcall(pcall, coroutine.yield, i) s = s + v end return s end) "
+            + "local t = gen() t = t + gen(10) t = t + gen(20) return t + gen(30)"));
+    }
+
+    @Test
+    public void yieldAcrossJavaCall() {
+        // 其他 Java 函数（如 string.gsub 的替换函数）：只有线程模式可以跨越它挂起
+        String r = (String) eval("local co = coroutine.wrap(function() "
+            + "return (('abc'):gsub('%w', function(c) coroutine.yield() return c:upper() end)) end) "
+            + "local ok, r = pcall(function() local r repeat r = co() until r return r end) return tostring(ok) .. ' ' .. r");
+        if ("continuation".equals(System.getProperty("jua.coroutine"))) {
+            assertEquals("false attempt to yield across a Java-call boundary", r);
+        } else {
+            assertEquals("true ABC", r);
+        }
+    }
+
+    @Test
+    public void reuseStacks() {
+        // 结束的协程归还值栈，承载线程回到线程池，新协程不必再启动新的线程
+        long started = ManagementFactory.getThreadMXBean().getTotalStartedThreadCount();
+        LuaStateImpl ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.loadString("local s = 0 for i = 1, 1000 do for v in coroutine.wrap(function() coroutine.yield(i) end) do "
+            + "s = s + v end end local co = coroutine.wrap(function() error('x') end) pcall(co) pcall(co) return s");
+        ls.call(0, 1);
+        assertEquals(500500L, ls.toInteger(-1));
+        assertEquals(1L, ls.threadPoolMisses());
+        assertEquals(1000L, ls.threadPoolHits());
+        assertTrue(ManagementFactory.getThreadMXBean().getTotalStartedThreadCount() - started < 100);
+    }
+
+    @Test
+    public void reclaimAbandoned() throws InterruptedException {
+        // 被丢弃的挂起协程：虚引用进入队列后 reaper 结束承载线程（直接放入队列，不等待垃圾回收）
+        LuaStateImpl ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.loadString("local t = {} for i = 1, 200 do "
+            + "local co = coroutine.create(function() while true do coroutine.yield() end end) "
+            + "coroutine.resume(co) t[i] = co end return t");
+        ls.call(0, 1);
+        LuaTable t = (LuaTable) ls.stack.get(-1);
+        Assume.assumeNotNull(((LuaThread) t.get(1L)).state.coroutine);
+        int before = Coroutine.carriers();
+        assertTrue(before >= 200);
+        for (long i = 1; i <= 200; i++) {
+            ((LuaThread) t.get(i)).state.coroutine.abandon();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (Coroutine.carriers() > before - 200 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(Coroutine.carriers() <= before - 200);
+        assertEquals("true 1", eval("local co = coroutine.running() local t = {} t[co] = 1 "
+            + "return tostring(co == coroutine.running()) .. ' ' .. t[coroutine.running()]"));
+    }
+
+}
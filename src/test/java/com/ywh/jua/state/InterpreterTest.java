@@ -0,0 +1,271 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaState;
+import com.ywh.jua.api.LuaString;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author ywh
+ * @since 2026/10/17
+ */
+public class InterpreterTest {
+
+    @Test
+    public void arith() {
+        assertEquals(17999994L, eval("local s = 0 for i = 1, 3000000 do s = s + i % 7 * 2 end return s"));
+        assertEquals(2.5, eval("local x, y = 10, 4 return x / y"));
+        assertEquals("1,2,3,", eval("local s = '' for i = 1, 3 do s = s .. i .. ',' end return s"));
+    }
+
+    @Test
+    public void number() {
+        assertEquals(4.5, eval("local s = 0 for i = 1, 2, 0.5 do s = s + i end return s"));
+        assertEquals(-3L, eval("local x = 3 return -x"));
+        assertEquals("true", eval("local n = 0 / 0 return tostring(n ~= n)"));
+        assertEquals("true", eval("local x, y = 1, 1.0 return tostring(x == y and x <= y and not (x < y))"));
+        assertEquals(6L, eval("local x = 7 return x & 6"));
+    }
+
+    @Test
+    public void arithOperands() {
+        assertEquals(-3L, eval("local x = 7 return x // -3 + x % 3 - 1"));
+        assertEquals(3.5, eval("local x = 3 return x + 0.5"));
+        assertEquals(1.0, eval("local x = 2.5 return x % 1.5"));
+        assertEquals(2L, eval("local x = 3.0 return x & 2"));
+        assertEquals(-8L, eval("local x = 7 return ~x"));
+        assertEquals(8.0, eval("local x = 2 return x ^ 3"));
+        assertEquals(11.0, eval("local x = '10' return x + 1"));
+        assertEquals(5L, eval("local v = setmetatable({}, {__add = function(a, b) return b end}) return v + 5"));
+    }
+
+    @Test
+    public void concat() {
+        assertEquals("a1b2.5c", eval("local x, y = 1, 2.5 return 'a' .. x .. 'b' .. y .. 'c'"));
+        assertEquals("<x>y", eval("local mt = {__concat = function(a, b) return '<' .. (type(a) == 'table' and a.v or a) .. '>' "
+            + ".. (type(b) == 'table' and b.v or b) end} local o = setmetatable({v = 'x'}, mt) return o .. 'y'"));
+        assertEquals("a<x>bc", eval("local mt = {__concat = function(a, b) return (type(a) == 'table' and '<' .. a.v .. '>' or a) "
+            + ".. (type(b) == 'table' and '<' .. b.v .. '>' or b) end} local o = setmetatable({v = 'x'}, mt) return 'a' .. o .. 'b' .. 'c'"));
+        // 反复追加生成绳索：长度、比较、作为表的键、传给库函数时展开
+        assertEquals(200000L, eval("local s = '' for i = 1, 100000 do s = s .. 'ab' end return #s"));
+        assertEquals("true true 3 300", eval("local s, t = '', '' for i = 1, 100 do s = s .. 'abc' t = t .. 'abc' end "
+            + "local k = {[s] = 3} return tostring(s == t) .. ' ' .. tostring(s <= t) .. ' ' .. k[t] .. ' ' .. string.len(s)"));
+        assertEquals(600L, eval("local s = '' for i = 1, 200 do s = 'xyz' .. s end return #(s .. '')"));
+    }
+
+    @Test
+    public void strings() {
+        // 字符串按字节处理：长度是字节数，转义序列与 UTF-8 字面量得到相同的字节，按无符号字节比较
+        assertEquals(6L, eval("return #'h\u00e9llo'"));
+        assertEquals("true 228 255", eval("local s = '\\xe4\\xb8\\xad' return tostring(s == '\u4e2d') .. ' ' .. s:byte() .. ' ' .. string.byte('\\255')"));
+        assertEquals("true", eval("return tostring('\\xff' > '\\x7f' and 'a\\0b' > 'a')"));
+        assertEquals("Hi|ell|ABC|ab,ab,ab|olleh", eval("return string.char(72, 105) .. '|' .. ('hello'):sub(2, 4) .. '|' "
+            + ".. string.upper('abc') .. '|' .. string.rep('ab', 3, ',') .. '|' .. string.reverse('hello')"));
+        assertEquals(3L, eval("local s = ('x'):rep(10000) .. 'abc' local t = s:sub(-4) return #t - 1"));
+        assertEquals(7L, eval("local i, j = string.find('hello world', 'o w', 1, true) return j"));
+    }
+
+    @Test
+    public void patterns() {
+        assertEquals("7 11 world", eval("local i, j, w = string.find('hello world', '(%a+)$') return i .. ' ' .. j .. ' ' .. w"));
+        assertEquals("key=val 3", eval("local k, v = string.match('  key = val', '(%w+)%s*=%s*(%w+)') "
+            + "local p = ('abc'):match('()c') return k .. '=' .. v .. ' ' .. p"));
+        assertEquals("nil|(a(b)c)|THE", eval("return tostring(string.match('xab', '^ab')) .. '|' "
+            + ".. string.match('x(a(b)c)y', '%b()') .. '|' .. string.match('THE (quick) fox', '%f[%a]%u+%f[%A]')"));
+        assertEquals("\"hi\" 2", eval("local q, n = string.match([[x \"hi\" y]], '([\"\\'])(.-)%1') return q .. 'hi' .. q .. ' ' .. #n"));
+        assertEquals("a,bb,ccc,", eval("local s = '' for w in string.gmatch('a bb  ccc', '%a+') do s = s .. w .. ',' end return s"));
+        assertEquals("k1=v1;k2=v2;", eval("local s = '' for k, v in ('k1=v1, k2=v2'):gmatch('(%w+)=(%w+)') do "
+            + "s = s .. k .. '=' .. v .. ';' end return s"));
+        assertEquals("hello hello world world 2", eval("local s, n = string.gsub('hello world', '(%w+)', '%1 %1') return s .. ' ' .. n"));
+        assertEquals("-a-b-c- 4", eval("local s, n = ('abc'):gsub('', '-') return s .. ' ' .. n"));
+        assertEquals("HELLO world|1, 2", eval("return ('hello world'):gsub('%w+', string.upper, 1) .. '|' "
+            + ".. ('$x, $y'):gsub('%$(%w+)', {x = '1', y = 2})"));
+        assertEquals("a.b.c 1", eval("local s, n = ('a.b.c'):gsub('^a', 'a') return s .. ' ' .. n"));
+        assertEquals("hell[5] w[8]rld", eval("return (string.gsub('hello world', '()o', '[%1]'))"));
+    }
+
+    @Test
+    public void patternScan() {
+        // 通过 API 传入的大字符串直接包装字节数组；没有替换时 gsub 返回原来的字符串
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("GET /item/").append(i).append(i % 10 == 0 ? " 500\n" : " 200\n");
+        }
+        LuaString log = LuaString.valueOf(sb.toString().getBytes(StandardCharsets.US_ASCII));
+        LuaStateImpl ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.pushLuaString(log);
+        ls.setGlobal("log");
+        ls.loadString("local n, last = 0 for id in log:gmatch('/item/(%d+) 500') do n = n + 1 last = id end "
+            + "local s, k = log:gsub(' 500\\n', ' ERR\\n') "
+            + "return log:gsub('POST', ''), n .. ' ' .. last .. ' ' .. k .. ' ' .. #s .. ' ' .. select(2, s:find('ERR', 1, true))");
+        ls.call(0, 2);
+        assertSame(log, ls.stack.get(1));
+        assertEquals("2000 19990 2000 " + log.length() + " 15", ls.toString(2));
+    }
+
+    @Test
+    public void intern() {
+        // 常量、拼接结果、子串和通过 API 传入的短字符串驻留为同一个对象，长字符串不驻留
+        LuaStateImpl ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.loadString("local t = {} t['ab' .. 'c'] = 1 local s = ('x'):rep(100) .. 'abc' "
+            + "return t, 'abc', s:sub(-3), s .. '', s .. ''");
+        ls.call(0, 5);
+        LuaTable t = (LuaTable) ls.stack.get(1);
+        assertSame(ls.stack.get(2), t.keyAt(t.next(null)));
+        assertSame(ls.stack.get(2), ls.stack.get(3));
+        ls.pushString("abc");
+        assertSame(ls.stack.get(2), ls.stack.get(-1));
+        assertNotSame(ls.stack.get(4), ls.stack.get(5));
+        assertEquals(ls.stack.get(4), ls.stack.get(5));
+    }
+
+    @Test
+    public void numericFor() {
+        assertEquals("1 3 5 ", eval("local s = '' for i = 1, 6, 2 do s = s .. i .. ' ' end return s"));
+        assertEquals("3 2 1 ", eval("local s = '' for i = 3, 1, -1 do s = s .. i .. ' ' end return s"));
+        assertEquals("1 2 ", eval("local s = '' for i = 1, 2.5 do s = s .. i .. ' ' end return s"));
+        assertEquals("0.5 1.0 ", eval("local s = '' for i = 0.5, 1, 0.5 do s = s .. i .. ' ' end return s"));
+        assertEquals(0L, eval("local n = 0 for i = 1, 0 do n = n + 1 end return n"));
+        assertEquals(3L, eval("local n = 0 for i = math.maxinteger - 2, math.maxinteger do n = n + 1 end return n"));
+        assertEquals(2L, eval("local n = 0 for i = math.mininteger, math.mininteger + 1 do n = n + 1 end return n"));
+        assertEquals(3L, eval("local n = 0 for i = math.maxinteger - 2, 1e100 do n = n + 1 end return n"));
+        assertEquals(0L, eval("local n = 0 for i = 1, -1e100 do n = n + 1 end return n"));
+        assertEquals(3L, eval("local n = 0 for i = math.mininteger, math.maxinteger, math.maxinteger do n = n + 1 end "
+            + "return n"));
+        assertEquals(3L, eval("local fs = {} for i = 1, 3 do fs[i] = function() return i end end return fs[3]()"));
+        assertEquals("'for' step is zero", eval("return select(2, pcall(function() for i = 1, 2, 0 do end end))"));
+    }
+
+    @Test
+    public void call() {
+        assertEquals(6765L, eval("local function fib(n) if n < 2 then return n end "
+            + "return fib(n - 1) + fib(n - 2) end return fib(20)"));
+        assertEquals(3L, eval("local function f(...) return select('#', ...) end return f(1, nil, 3)"));
+        assertEquals(6L, eval("local function f(...) return ... end "
+            + "local function sum(a, b, c) return a + b + c end return sum(f(1, 2, 3))"));
+        assertEquals(3L, eval("local t = {(function() return 1, 2, 3 end)()} return #t"));
+        assertEquals("1 2 2", eval("local function f(a, b, ...) return a .. ' ' .. b .. ' ' .. select('#', ...) end "
+            + "return f(1, 2, 3, 4)"));
+    }
+
+    @Test
+    public void deepCall() {
+        assertEquals(100000L, eval("local function depth(n) if n == 0 then return 0 end return 1 + depth(n - 1) end "
+            + "return depth(100000)"));
+        assertEquals(500000500000L, eval("local function sum(n, acc) if n == 0 then return acc end "
+            + "return sum(n - 1, acc + n) end return sum(1000000, 0)"));
+        assertEquals("stack overflow", eval("local function inf(n) return 1 + inf(n) end "
+            + "return select(2, pcall(inf, 1))"));
+    }
+
+    @Test
+    public void pcall() {
+        assertEquals("false deep 3", eval("local function deep(n) if n == 0 then error('deep') end return deep(n - 1) end "
+            + "local ok, e = pcall(deep, 50) return tostring(ok) .. ' ' .. e .. ' ' .. select('#', 1, 2, 3)"));
+        assertEquals("1 2 3", eval("local fs = {} for i = 1, 3 do fs[i] = function() return i end end "
+            + "pcall(error, 'x') return fs[1]() .. ' ' .. fs[2]() .. ' ' .. fs[3]()"));
+    }
+
+    @Test
+    public void closure() {
+        assertEquals(3L, eval("local function counter() local c = 0 return function() c = c + 1 return c end end "
+            + "local f = counter() f() f() return f()"));
+    }
+
+    @Test
+    public void pairs() {
+        assertEquals(1001001L, eval("local t = {} for i = 1, 1000 do t[i] = i t['k' .. i] = i end "
+            + "local s = 0 for k, v in pairs(t) do s = s + v t[k] = nil end return s + select('#', next(t))"));
+        assertEquals("1a2b3c", eval("local s = '' for i, v in ipairs({'a', 'b', 'c', nil, 'e'}) do s = s .. i .. v end "
+            + "return s"));
+        assertEquals("1x2y", eval("local p = setmetatable({'x'}, {__index = function(t, i) if i == 2 then return 'y' end end}) "
+            + "local s = '' for i, v in ipairs(p) do s = s .. i .. v end return s"));
+        assertEquals(6L, eval("local s = 0 for k in next, {a = 1, b = 2, 3} do s = s + (type(k) == 'string' and 1 or 4) end "
+            + "return s"));
+    }
+
+    @Test
+    public void metatable() {
+        assertEquals("base d", eval("local Base = {} Base.__index = Base "
+            + "function Base:hello() return 'base ' .. self.name end "
+            + "local Derived = setmetatable({}, {__index = Base}) Derived.__index = Derived "
+            + "return setmetatable({name = 'd'}, Derived):hello()"));
+        // __index 链的缓存在链上的表被修改、更换元表后失效
+        assertEquals("c b a2 nil x ", eval("local A = {} A.__index = A function A.f() return 'a' end "
+            + "local B = setmetatable({}, A) B.__index = B local C = setmetatable({}, B) C.__index = C "
+            + "local o = setmetatable({}, C) local s = '' local function f() s = s .. (o.f and o.f() or 'nil') .. ' ' end "
+            + "o.f() C.f = function() return 'c' end f() C.f = nil B.f = function() return 'b' end f() "
+            + "B.f = nil A.f = function() return 'a2' end f() setmetatable(B, nil) f() "
+            + "setmetatable(B, {__index = function() return function() return 'x' end end}) f() return s"));
+        // 链上的表的元表没有 __index 时缓存了 nil，之后给该元表加入 __index 仍然生效
+        assertEquals("nil 42", eval("local Base = {} local mm = {} local Mid = setmetatable({}, mm) "
+            + "local obj = setmetatable({}, {__index = Mid}) local a = tostring(obj.foo) "
+            + "Base.foo = 42 mm.__index = Base return a .. ' ' .. tostring(obj.foo)"));
+        assertEquals("'__index' chain too long; possibly a loop", eval("local L = {} L.__index = L setmetatable(L, L) "
+            + "return select(2, pcall(function() return setmetatable({}, L).y end))"));
+        // 方法缓存：多个类经过同一条 SELF 指令，接收者自身的同名字段、类的方法被替换
+        assertEquals("ab!cA", eval("local A = {} A.__index = A function A:name() return 'a' end "
+            + "local B = setmetatable({}, A) B.__index = B function B:name() return 'b' end "
+            + "local objs = {setmetatable({}, A), setmetatable({}, B), setmetatable({name = function() return '!' end}, A)} "
+            + "local s = '' for i = 1, 3 do s = s .. objs[i]:name() end "
+            + "B.name = function() return 'c' end s = s .. objs[2]:name() "
+            + "function A:name() return 'A' end return s .. objs[1]:name()"));
+        // 类表上其他字段的写入不使缓存失效，查找过的键（包括解析为 nil 的键）、__index 的写入仍然生效
+        assertEquals("30 a b 1 2 c", eval("local A = {n = 0} A.__index = A function A:inc() A.n = A.n + 1 return A.n end "
+            + "local o = setmetatable({}, A) for i = 1, 30 do o:inc() end local s = A.n .. ' ' .. tostring(o.x) "
+            + "A.x = 'b' function A:inc() return 'a' end s = s:gsub('nil', o:inc()) .. ' ' .. o.x "
+            + "for i = 1, 100 do local _ = o['k' .. i] end A.k100 = 1 A.k1 = 2 s = s .. ' ' .. o.k100 .. ' ' .. o.k1 "
+            + "A.__index = {inc = function() return 'c' end} return s .. ' ' .. o:inc()"));
+        // 已知不存在的元方法在写入 "__" 开头的键后重新查找
+        assertEquals("nil 7 x", eval("local mt = {} local o = setmetatable({}, mt) local a = tostring(o.x) "
+            + "local ok = pcall(function() return o + 1 end) mt.__add = function(p, q) return q + 6 end "
+            + "mt.__index = function(t, k) return k end return a .. ' ' .. (o + 1) .. ' ' .. o.x"));
+    }
+
+    @Test
+    public void fieldCache() {
+        // 多种形状、字典模式的表经过同一条指令
+        assertEquals(1111L, eval("local function get(o) return o.x end local s = 0 "
+            + "local objs = {{x = 1}, {y = 0, x = 10}, {a = 0, b = 0, x = 100}, {x = 1000, [true] = 0}} "
+            + "for i = 1, 10 do s = 0 for _, o in ipairs(objs) do s = s + get(o) end end return s"));
+        assertEquals(30L, eval("local function get(o) return o.x end local s = 0 "
+            + "for i = 1, 10 do local o = {} for j = 1, i do o['f' .. j] = j end o.x = 3 s = s + get(o) end return s"));
+        // 缓存的字段被清除后 __index、__newindex 仍然生效，墓碑被其他键复用后不会读到错误的值
+        assertEquals("mi", eval("local log = '' local mt = {__index = function() return 'm' end, "
+            + "__newindex = function(t, k, v) log = log .. v end} "
+            + "local o = setmetatable({x = 1}, mt) local function f() o.x = 'i' return o.x end "
+            + "f() o.x = nil local r = f() return r .. log"));
+        assertEquals("nil", eval("local t = {} for i = 1, 20 do t['k' .. i] = i end "
+            + "local function f() return t.k1 end f() t.k1 = nil t.z = 5 return tostring(f())"));
+        assertEquals(3.0, eval("local v = 0 for i = 1, 3 do v = v + math.sqrt(1.0) end return v"));
+    }
+
+    /**
+     * 执行代码，返回第一个返回值
+     *
+     * @param chunk
+     * @return
+     */
+    static Object eval(String chunk) {
+        LuaState ls = new LuaStateImpl();
+        ls.openLibs();
+        ls.loadString(chunk);
+        ls.call(0, 1);
+        Long i = ls.toIntegerX(-1);
+        if (i != null) {
+            return i;
+        }
+        if (ls.isNumber(-1)) {
+            return ls.toNumber(-1);
+        }
+        return ls.toString(-1);
+    }
+
+}
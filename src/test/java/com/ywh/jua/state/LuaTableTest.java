@@ -0,0 +1,274 @@
+package com.ywh.jua.state;
+
+import com.ywh.jua.api.LuaString;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author ywh
+ * @since 2026/10/17
+ */
+public class LuaTableTest {
+
+    @Test
+    public void array() {
+        LuaTable t = new LuaTable(0, 0);
+        for (long i = 1; i <= 1000; i++) {
+            t.put(i, i * 2);
+        }
+        assertEquals(1000, t.length());
+        assertEquals(20L, t.get(10L));
+        assertEquals(20L, t.get(10.0));
+        t.put(1000L, null);
+        assertEquals(999, t.length());
+        assertNull(t.get(1001L));
+    }
+
+    @Test
+    public void hash() {
+        LuaTable t = new LuaTable(0, 0);
+        for (int i = 0; i < 1000; i++) {
+            t.put("k" + i, i);
+        }
+        t.put(2.5, "f");
+        t.put(true, "b");
+        assertEquals(999, t.get("k999"));
+        assertEquals("f", t.get(2.5));
+        assertEquals("b", t.get(true));
+        assertEquals(0, t.length());
+
+        // 墓碑：删除后可以重新插入，探测链不受影响
+        for (int i = 0; i < 1000; i += 2) {
+            t.put("k" + i, null);
+        }
+        assertNull(t.get("k0"));
+        assertEquals(999, t.get("k999"));
+        t.put("k0", "again");
+        assertEquals("again", t.get("k0"));
+    }
+
+    @Test
+    public void small() {
+        // 线性扫描的小表：墓碑可以复用，超过容量后转为散列存放
+        LuaTable t = new LuaTable(0, 3);
+        t.put("x", 1L);
+        t.put("y", 2L);
+        t.put("z", 3L);
+        t.put("y", null);
+        t.put("w", 4L);
+        assertNull(t.get("y"));
+        assertEquals(4L, t.get("w"));
+        assertEquals(1L, t.get(new String("x")));
+        for (int i = 0; i < 20; i++) {
+            t.put("k" + i, (long) i);
+        }
+        assertEquals(3L, t.get("z"));
+        assertEquals(19L, t.get("k19"));
+        assertNull(t.get("y"));
+    }
+
+    @Test
+    public void shape() {
+        LuaTable p = new LuaTable(0, 2);
+        p.put(str("x"), 1L);
+        p.put(str("y"), 2L);
+        LuaTable q = new LuaTable(0, 0);
+        q.put(str("x"), 3L);
+        q.put(str("y"), 4L);
+        assertEquals(2L, p.get(str("y")));
+        assertEquals(4L, q.get(str("y")));
+
+        // 清除字段后仍然可以重新赋值和遍历
+        q.put(str("x"), null);
+        assertNull(q.get(str("x")));
+        assertEquals(str("y"), q.keyAt(q.next(null)));
+        assertEquals(-1, q.next(str("y")));
+        q.put(str("x"), 5L);
+        assertEquals(5L, q.get(str("x")));
+
+        // 其他类型的键、超过形状的最大键数：退回字典模式
+        p.put(true, "b");
+        p.put(1L, "a");
+        assertEquals("b", p.get(true));
+        assertEquals(1L, p.get(str("x")));
+        assertEquals(1, p.length());
+        LuaTable r = new LuaTable(0, 0);
+        for (int i = 0; i < Shape.MAX_KEYS * 2; i++) {
+            r.put(str("f" + i), (long) i);
+        }
+        assertEquals(31L, r.get(str("f31")));
+        assertEquals(0L, r.get(str("f0")));
+    }
+
+    @Test
+    public void shapeBudget() throws InterruptedException {
+        // 用完形状的预算后，不再使用的形状被回收，新建的表重新使用形状
+        for (int i = 0; i <= 1 << 16; i++) {
+            new LuaTable(0, 0).put(str("budget" + i), 1L);
+        }
+        LuaTable t;
+        long deadline = System.currentTimeMillis() + 5000;
+        do {
+            System.gc();
+            Thread.sleep(10);
+            t = new LuaTable(0, 0);
+            t.put(str("fresh"), 1L);
+        } while (t.shapeKeys() == null && System.currentTimeMillis() < deadline);
+        assertNotNull(t.shapeKeys());
+        assertEquals(1L, t.get(str("fresh")));
+    }
+
+    @Test
+    public void indexCache() {
+        // 链缓存只在自己链上的表写入依赖的键时失效，其他表、链上的表的其他字段的写入不影响它
+        LuaTable mt = new LuaTable(0, 0);
+        LuaTable cls = new LuaTable(0, 0);
+        LuaTable other = new LuaTable(0, 0);
+        LuaString k = LuaString.valueOf("f");
+        LuaString count = LuaString.valueOf("count");
+        cls.put(k, "method");
+        cls.put(count, 0L);
+        IndexCache cache = new IndexCache();
+        cache.visit(0, mt, TagMethod.INDEX.event);
+        cache.visit(1, cls, k);
+        cache.put(k, "method");
+        other.put(k, "x");
+        for (long i = 1; i <= 10; i++) {
+            cls.put(count, i);
+            cls.setSlotValue(cls.slotOf(count), i);
+            cls.put(i, i);
+            mt.put(count, i);
+        }
+        assertEquals("method", cache.get(k));
+        int epoch = cache.epoch();
+        cls.put(k, "changed");
+        assertNull(cache.get(k));
+        assertEquals(epoch + 1, cache.epoch());
+    }
+
+    @Test
+    public void fieldCache() {
+        // 字典模式的表只记录最近一张，不计入多态：经过很多张字典后形状仍然缓存
+        LuaString k = str("x");
+        FieldCache fc = new FieldCache();
+        LuaTable[] dicts = new LuaTable[10];
+        for (int i = 0; i < dicts.length; i++) {
+            dicts[i] = new LuaTable(0, Shape.MAX_KEYS + 1);
+            dicts[i].put(k, (long) i);
+            fc.update(dicts[i], k);
+        }
+        assertNull(dicts[0].shapeKeys());
+        assertEquals(-1, fc.lookup(dicts[0]));
+        assertEquals(9L, dicts[9].slotValue(fc.lookup(dicts[9])));
+        LuaTable p = new LuaTable(0, 0);
+        p.put(k, "p");
+        fc.update(p, k);
+        LuaTable q = new LuaTable(0, 0);
+        q.put(k, "q");
+        assertEquals("q", q.slotValue(fc.lookup(q)));
+        assertEquals(9L, dicts[9].slotValue(fc.lookup(dicts[9])));
+    }
+
+    @Test
+    public void rehashIntoArray() {
+        // 逆序插入的整数键先进入哈希部分，重新哈希时移入数组部分
+        LuaTable t = new LuaTable(0, 0);
+        for (long i = 100; i >= 1; i--) {
+            t.put(i, i);
+        }
+        assertEquals(100, t.length());
+        assertEquals(50L, t.get(50L));
+        t.put(1L << 40, "big");
+        assertEquals("big", t.get(1L << 40));
+    }
+
+    @Test
+    public void numArray() {
+        LuaTable t = new LuaTable(4, 0);
+        for (long i = 1; i <= 100; i++) {
+            t.putNum(i, LuaStack.TAG_INTEGER, i * 3);
+        }
+        assertEquals(LuaStack.TAG_INTEGER, t.numTag(100));
+        assertEquals(300L, t.numAt(100));
+        assertEquals(30L, t.get(10L));
+        assertEquals(100, t.length());
+
+        // 清除末尾的值仍然是拆箱的数组
+        t.put(100L, null);
+        assertEquals(99, t.length());
+        assertEquals(LuaStack.TAG_INTEGER, t.numTag(99));
+        assertEquals(LuaStack.TAG_REF, t.numTag(100));
+
+        LuaTable f = new LuaTable(0, 0);
+        for (long i = 1; i <= 10; i++) {
+            f.put(i, i + 0.5);
+        }
+        assertEquals(LuaStack.TAG_FLOAT, f.numTag(10));
+        assertEquals(10.5, f.get(10L));
+    }
+
+    @Test
+    public void despecialize() {
+        LuaTable t = new LuaTable(8, 0);
+        for (long i = 1; i <= 8; i++) {
+            t.put(i, i);
+        }
+        // 类型不同
+        t.put(3L, "x");
+        assertEquals(LuaStack.TAG_REF, t.numTag(1));
+        assertEquals(1L, t.get(1L));
+        assertEquals("x", t.get(3L));
+        assertEquals(8, t.length());
+
+        // 中间的洞
+        LuaTable h = new LuaTable(8, 0);
+        for (long i = 1; i <= 8; i++) {
+            h.put(i, (double) i);
+        }
+        h.put(4L, null);
+        assertNull(h.get(4L));
+        assertEquals(5.0, h.get(5L));
+
+        // 逆序插入：重新哈希后仍然选择拆箱的数组
+        LuaTable r = new LuaTable(0, 0);
+        for (long i = 64; i >= 1; i--) {
+            r.put(i, i);
+        }
+        r.put(65L, 65L);
+        assertEquals(LuaStack.TAG_INTEGER, r.numTag(64));
+        Set<Object> keys = new HashSet<>();
+        for (int i = r.next(null); i >= 0; i = r.next(r.keyAt(i))) {
+            keys.add(r.valueAt(i));
+        }
+        assertEquals(65, keys.size());
+    }
+
+    @Test
+    public void next() {
+        LuaTable t = new LuaTable(0, 0);
+        t.put(1L, "a");
+        t.put(2L, "b");
+        t.put("x", "c");
+        t.put("y", "d");
+        t.put("z", null);
+        Set<Object> keys = new HashSet<>();
+        for (int i = t.next(null); i >= 0; i = t.next(t.keyAt(i))) {
+            keys.add(t.keyAt(i));
+            // 遍历过程中可以清除已有字段
+            t.put(t.keyAt(i), null);
+        }
+        assertEquals(4, keys.size());
+        assertEquals(-1, t.next(null));
+    }
+
+    private static LuaString str(String s) {
+        return LuaString.valueOf(s);
+    }
+
+}
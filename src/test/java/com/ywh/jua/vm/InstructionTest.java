@@ -0,0 +1,42 @@
+package com.ywh.jua.vm;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author ywh
+ * @since 2026/10/17
+ */
+public class InstructionTest {
+
+    /**
+     * OP_XXX 常量必须与 OpCode 的序数一致
+     *
+     * @throws Exception
+     */
+    @Test
+    public void opCodeConstants() throws Exception {
+        for (OpCode opCode : OpCode.values()) {
+            Field field = Instruction.class.getField("OP_" + opCode.name());
+            assertEquals(opCode.name(), opCode.ordinal(), field.getInt(null));
+        }
+    }
+
+    @Test
+    public void decode() {
+        // ADD 3 1 -2 (RK(C) 为常量 1)
+        int add = OpCode.ADD.ordinal() | 3 << 6 | (0x100 | 1) << 14 | 1 << 23;
+        assertEquals(OpCode.ADD, Instruction.getOpCode(add));
+        assertEquals(3, Instruction.getA(add));
+        assertEquals(1, Instruction.getB(add));
+        assertEquals(0x101, Instruction.getC(add));
+
+        // JMP 0 -5
+        int jmp = OpCode.JMP.ordinal() | (Instruction.MAXARG_S_BX - 5) << 14;
+        assertEquals(-5, Instruction.getSBx(jmp));
+    }
+
+}